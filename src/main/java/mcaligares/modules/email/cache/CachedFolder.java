@@ -0,0 +1,460 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import mcaligares.modules.email.entity.Message;
+import mcaligares.modules.email.store.AttachmentHandle;
+import mcaligares.modules.email.store.AttachmentStore;
+
+/**
+ * Cached messages of one account folder, kept in two files:
+ * <pre>
+ * .dat  parsed messages, appended one after the other, each behind a
+ *       header with its UID, length and CRC32
+ * .idx  folder state, offset of every message by UID and the UIDs
+ *       matched by every filter already run
+ * </pre>
+ * The index is rewritten on {@link #save()}, once the data file is forced
+ * to disk. Anything appended after the last save is ignored when the cache
+ * is opened again, and a record failing its header check is fetched again.
+ *
+ * @author miguel
+ *
+ */
+public final class CachedFolder {
+
+    private static final int MAGIC = 0x4D434D43;
+    private static final int VERSION = 2;
+    // uid, length and crc of the payload
+    private static final int RECORD_HEADER = 8 + 4 + 4;
+
+    private final File index;
+    private final File data;
+    private final long maxSize;
+    private final AttachmentStore attachments;
+
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    private final Map<String, long[]> results = new HashMap<String, long[]>();
+    // Attachment references held by the cached messages
+    private final Map<String, Integer> retained = new HashMap<String, Integer>();
+
+    private long uidValidity = -1;
+    private int count = -1;
+    private long lastUid = -1;
+    private long validatedAt;
+    private long dataLength;
+    private boolean dirty;
+    private boolean unsynced;
+
+    private static final class Entry {
+        // Start of the record header
+        private final long offset;
+        // Payload only
+        private final int length;
+
+        private Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    CachedFolder(File index, File data, long maxSize, AttachmentStore attachments) {
+        this.index = index;
+        this.data = data;
+        this.maxSize = maxSize;
+        this.attachments = attachments;
+
+        try {
+            load();
+        } catch (Exception e) {
+            // Missing or unreadable, start empty
+            entries.clear();
+            results.clear();
+            retained.clear();
+            reset();
+            uidValidity = -1;
+            count = -1;
+            lastUid = -1;
+        }
+    }
+
+    /**
+     * Compares the folder state with the cached one. Messages are kept while
+     * the UIDVALIDITY is the same and no message was expunged, filter results
+     * only while nothing changed.
+     *
+     * @return true if the cache is still up to date
+     */
+    public synchronized boolean validate(final long uidValidity, final int count, final long lastUid) {
+        final boolean unchanged = uidValidity == this.uidValidity && count == this.count
+                && lastUid == this.lastUid;
+
+        if (!unchanged) {
+            final boolean expunged = uidValidity != this.uidValidity || count < this.count
+                    || lastUid < this.lastUid;
+            if (expunged || dataLength > maxSize) {
+                reset();
+            } else {
+                results.clear();
+            }
+            this.uidValidity = uidValidity;
+            this.count = count;
+            this.lastUid = lastUid;
+        }
+
+        validatedAt = System.currentTimeMillis();
+        dirty = true;
+        return unchanged;
+    }
+
+    /**
+     * @return when the state was last checked against the server
+     */
+    public synchronized long getValidatedAt() {
+        return validatedAt;
+    }
+
+    /**
+     * @return the UIDs matched by the filter or null if it was not run since the last change
+     */
+    public synchronized long[] getResult(final String filterKey) {
+        return results.get(filterKey);
+    }
+
+    public synchronized void putResult(final String filterKey, final long[] uids) {
+        results.put(filterKey, uids);
+        dirty = true;
+    }
+
+    public synchronized boolean contains(final long uid) {
+        return entries.containsKey(uid);
+    }
+
+    /**
+     * @return the cached message or null if it is not cached, its record is
+     * damaged or its attachments are gone
+     */
+    public synchronized Message get(final long uid) throws IOException {
+        final Entry entry = entries.get(uid);
+        if (entry == null) return null;
+
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + entry.length);
+        final FileChannel channel = FileChannel.open(data.toPath(), StandardOpenOption.READ);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset + buffer.position()) < 0) break;
+            }
+        } finally {
+            channel.close();
+        }
+        buffer.flip();
+
+        if (!isValidRecord(buffer, uid, entry.length)) {
+            // Not what the index points to, fetch the message again
+            entries.remove(uid);
+            dirty = true;
+            return null;
+        }
+
+        final String from = getString(buffer);
+        final String subject = getString(buffer);
+        final String content = getString(buffer);
+
+        List<String> to = null;
+        final int toCount = buffer.getInt();
+        if (toCount >= 0) {
+            to = new ArrayList<String>(toCount);
+            for (int i = 0; i < toCount; i++) to.add(getString(buffer));
+        }
+
+        List<AttachmentHandle> attaches = null;
+        final int attachCount = buffer.getInt();
+        if (attachCount >= 0) {
+            attaches = new ArrayList<AttachmentHandle>(attachCount);
+            for (int i = 0; i < attachCount; i++) {
+                final String hash = getString(buffer);
+                final String name = getString(buffer);
+                final AttachmentHandle handle = attachments.get(hash, name);
+                if (handle == null) {
+                    // Removed from the store behind our back, fetch the message again
+                    for (AttachmentHandle taken : attaches) taken.release();
+                    return null;
+                }
+                attaches.add(handle);
+            }
+        }
+
+        return new Message(from, subject, content, to, attaches);
+    }
+
+    /**
+     * Appends a message, its content and attachments are loaded if they were
+     * not. The cache keeps its own reference to the attachments.
+     */
+    public synchronized void put(final long uid, final Message message) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        final DataOutputStream output = new DataOutputStream(bytes);
+
+        putString(output, message.getFrom());
+        putString(output, message.getSubject());
+        putString(output, message.getContent());
+
+        final List<String> to = message.getTo();
+        output.writeInt(to != null ? to.size() : -1);
+        if (to != null) {
+            for (String address : to) putString(output, address);
+        }
+
+        final List<AttachmentHandle> attaches = message.getAttaches();
+        output.writeInt(attaches != null ? attaches.size() : -1);
+        if (attaches != null) {
+            for (AttachmentHandle attach : attaches) {
+                putString(output, attach.getHash());
+                putString(output, attach.getName());
+            }
+        }
+        output.flush();
+
+        if (attaches != null) {
+            for (int i = 0; i < attaches.size(); i++) {
+                if (!attachments.retain(attaches.get(i).getHash())) {
+                    for (int j = 0; j < i; j++) attachments.release(attaches.get(j).getHash());
+                    throw new IOException("attachment " + attaches.get(i) + " is not stored");
+                }
+            }
+            for (AttachmentHandle attach : attaches) {
+                final Integer held = retained.get(attach.getHash());
+                retained.put(attach.getHash(), held != null ? held + 1 : 1);
+            }
+        }
+
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        buffer.putLong(uid).putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        buffer.flip();
+
+        final FileChannel channel = FileChannel.open(data.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            // Overwrites whatever was appended after the last save
+            long position = dataLength;
+            while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        } finally {
+            channel.close();
+        }
+
+        entries.put(uid, new Entry(dataLength, payload.length));
+        dataLength += buffer.capacity();
+        dirty = true;
+        unsynced = true;
+    }
+
+    /**
+     * Writes the index, replacing the previous one atomically.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+
+        if (unsynced && data.exists()) {
+            // The index must never point to bytes not on disk yet
+            final FileChannel channel = FileChannel.open(data.toPath(), StandardOpenOption.WRITE);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+        unsynced = false;
+
+        final File partial = new File(index.getParentFile(), index.getName() + ".tmp");
+        final FileOutputStream file = new FileOutputStream(partial);
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(uidValidity);
+            output.writeInt(count);
+            output.writeLong(lastUid);
+            output.writeLong(validatedAt);
+            output.writeLong(dataLength);
+
+            output.writeInt(entries.size());
+            for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+                output.writeLong(entry.getKey());
+                output.writeLong(entry.getValue().offset);
+                output.writeInt(entry.getValue().length);
+            }
+
+            output.writeInt(results.size());
+            for (Map.Entry<String, long[]> result : results.entrySet()) {
+                putString(output, result.getKey());
+                output.writeInt(result.getValue().length);
+                for (long uid : result.getValue()) output.writeLong(uid);
+            }
+
+            output.writeInt(retained.size());
+            for (Map.Entry<String, Integer> held : retained.entrySet()) {
+                putString(output, held.getKey());
+                output.writeInt(held.getValue());
+            }
+            output.flush();
+            file.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        try {
+            Files.move(partial.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Drops every cached message and filter result.
+     */
+    public synchronized void clear() throws IOException {
+        reset();
+        uidValidity = -1;
+        count = -1;
+        lastUid = -1;
+        dirty = true;
+        save();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void reset() {
+        for (Map.Entry<String, Integer> held : retained.entrySet()) {
+            try {
+                for (int i = 0; i < held.getValue(); i++) attachments.release(held.getKey());
+            } catch (IOException e) {}
+        }
+        retained.clear();
+        entries.clear();
+        results.clear();
+        dataLength = 0;
+        if (data.exists()) data.delete();
+    }
+
+    private void load() throws IOException {
+        if (!index.isFile()) {
+            reset();
+            return;
+        }
+
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) throw new IOException("not a cache index");
+
+            uidValidity = input.readLong();
+            count = input.readInt();
+            lastUid = input.readLong();
+            validatedAt = input.readLong();
+            dataLength = input.readLong();
+            if (data.length() < dataLength) throw new IOException("truncated cache data");
+
+            final int entryCount = input.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                final long uid = input.readLong();
+                entries.put(uid, new Entry(input.readLong(), input.readInt()));
+            }
+
+            final int resultCount = input.readInt();
+            for (int i = 0; i < resultCount; i++) {
+                final String key = readString(input);
+                final long[] uids = new long[input.readInt()];
+                for (int j = 0; j < uids.length; j++) uids[j] = input.readLong();
+                results.put(key, uids);
+            }
+
+            final int retainedCount = input.readInt();
+            for (int i = 0; i < retainedCount; i++) {
+                final String hash = readString(input);
+                retained.put(hash, input.readInt());
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static boolean isValidRecord(final ByteBuffer buffer, final long uid, final int length) {
+        if (buffer.remaining() != RECORD_HEADER + length) return false;
+        if (buffer.getLong() != uid || buffer.getInt() != length) return false;
+
+        final int expected = buffer.getInt();
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.position(), length);
+        return (int) crc.getValue() == expected;
+    }
+
+    private static void putString(final DataOutputStream output, final String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String getString(final ByteBuffer buffer) throws IOException {
+        final int length = buffer.getInt();
+        if (length < 0) return null;
+
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String readString(final DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length < 0) return null;
+
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import mcaligares.modules.email.store.AttachmentStore;
+
+/**
+ * Local copy of received messages, one {@link CachedFolder} per account and
+ * folder, so a repeated receive is answered from disk.
+ *
+ * @author miguel
+ *
+ */
+public class MessageCache {
+
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String DATA_SUFFIX = ".dat";
+
+    private final File directory;
+    private final AttachmentStore attachments;
+    private final long maxSize;
+    private final long ttl;
+    private final ConcurrentMap<String, CachedFolder> folders = new ConcurrentHashMap<String, CachedFolder>();
+
+    /**
+     * @param directory where the cache files are kept
+     * @param attachments store holding the attachments of the cached messages
+     * @param maxSize data file size of a folder after which it starts over
+     * @param ttl milliseconds a validated folder is trusted without checking it on the server, zero to always check
+     */
+    public MessageCache(File directory, AttachmentStore attachments, long maxSize, long ttl) throws IOException {
+        super();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create cache directory " + directory);
+
+        this.directory = directory;
+        this.attachments = attachments;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    public CachedFolder getFolder(final String account, final String folder) {
+        final String name = fileName(account, folder);
+
+        CachedFolder cached = folders.get(name);
+        if (cached == null) {
+            cached = new CachedFolder(new File(directory, name + INDEX_SUFFIX),
+                    new File(directory, name + DATA_SUFFIX), maxSize, attachments);
+            final CachedFolder previous = folders.putIfAbsent(name, cached);
+            if (previous != null) cached = previous;
+        }
+        return cached;
+    }
+
+    /**
+     * @return true if the folder was validated recently enough to skip the server
+     */
+    public boolean isFresh(final CachedFolder folder) {
+        return ttl > 0 && System.currentTimeMillis() - folder.getValidatedAt() < ttl;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private static String fileName(final String account, final String folder) {
+        try {
+            return URLEncoder.encode(account.toLowerCase() + "/" + folder, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
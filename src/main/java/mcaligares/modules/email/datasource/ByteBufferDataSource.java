@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.datasource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.activation.DataSource;
+
+/**
+ * Read only DataSource over in-memory bytes. Every stream reads its own view
+ * of the buffer, the bytes are never copied.
+ *
+ * @author miguel
+ *
+ */
+public class ByteBufferDataSource implements DataSource {
+
+    private final ByteBuffer buffer;
+    private final String name;
+    private final String contentType;
+
+    public ByteBufferDataSource(byte[] bytes, String name, String contentType) {
+        this(ByteBuffer.wrap(bytes), name, contentType);
+    }
+
+    public ByteBufferDataSource(ByteBuffer buffer, String name, String contentType) {
+        super();
+        if (buffer == null) throw new NullPointerException("buffer cannot be null");
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    public InputStream getInputStream() {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("read only data source");
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return buffer.remaining();
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.datasource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.activation.DataSource;
+
+/**
+ * Read only DataSource streaming a file through its {@link FileChannel}.
+ * Large files are memory mapped, so their bytes go from the page cache to
+ * the transfer encoder without being loaded on the heap.
+ *
+ * @author miguel
+ *
+ */
+public class FileChannelDataSource implements DataSource {
+
+    public static final long DEFAULT_MAP_THRESHOLD = 256 * 1024;
+
+    private final File file;
+    private final String name;
+    private final String contentType;
+    private final long mapThreshold;
+
+    public FileChannelDataSource(File file, String contentType) {
+        this(file, file.getName(), contentType, DEFAULT_MAP_THRESHOLD);
+    }
+
+    public FileChannelDataSource(File file, String name, String contentType, long mapThreshold) {
+        super();
+        if (file == null) throw new NullPointerException("file cannot be null");
+        this.file = file;
+        this.name = name;
+        this.contentType = contentType;
+        this.mapThreshold = mapThreshold;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        final long size = channel.size();
+
+        if (size < mapThreshold || size > Integer.MAX_VALUE) {
+            return Channels.newInputStream(channel);
+        }
+
+        try {
+            // The mapping stays valid after the channel is closed
+            return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } finally {
+            channel.close();
+        }
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("read only data source");
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+}
@@ -16,12 +16,16 @@
 
 package mcaligares.modules.email.entity;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 
 import javax.activation.DataSource;
-import javax.mail.util.ByteArrayDataSource;
+import javax.activation.FileTypeMap;
+import javax.activation.URLDataSource;
 
+import mcaligares.modules.email.datasource.ByteBufferDataSource;
+import mcaligares.modules.email.datasource.FileChannelDataSource;
 import mcaligares.modules.email.exception.EmailException;
 import mcaligares.modules.email.utils.EmailUtils;
 
@@ -33,17 +37,26 @@ import mcaligares.modules.email.utils.EmailUtils;
 public class Attachment {
 
     private static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
+    private static final String FILE_PROTOCOL = "file";
 
     private URL url;
     private String path;
     private String name;
     private String description;
     private String disposition;
+    private String contentType;
+    private byte[] data;
 
     public Attachment() {
         super();
     }
 
+    public Attachment(String name, byte[] data, String contentType) {
+        this(name, null, null, null, null);
+        this.setData(data);
+        this.setContentType(contentType);
+    }
+
     public Attachment(String name, String path) {
         this(name, null, null, path, null);
     }
@@ -105,8 +118,77 @@ public class Attachment {
         this.disposition = disposition;
     }
 
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Streams the attachment from memory, the url, the file system path or
+     * the class path, in that order. Nothing is read until the message is
+     * written.
+     */
     public DataSource getDataSource() throws IOException, EmailException {
-        return new ByteArrayDataSource(EmailUtils.readFileAsString(this.getPath()), APPLICATION_OCTET_STREAM);
+        if (data != null) {
+            return new ByteBufferDataSource(data, name, resolveContentType(name));
+        }
+
+        if (url != null) {
+            return fromUrl(url);
+        }
+
+        if (EmailUtils.isBlank(path)) throw new EmailException("Attachment without data, url or path");
+
+        final File file = new File(path);
+        if (file.isFile()) {
+            return new FileChannelDataSource(file, getFileName(file), resolveContentType(getFileName(file)),
+                    FileChannelDataSource.DEFAULT_MAP_THRESHOLD);
+        }
+
+        final URL resource = ClassLoader.getSystemResource(path);
+        if (resource == null) throw new EmailException("Attachment not found " + path);
+        return fromUrl(resource);
+    }
+
+    private DataSource fromUrl(final URL source) throws EmailException {
+        if (FILE_PROTOCOL.equalsIgnoreCase(source.getProtocol())) {
+            try {
+                final File file = new File(source.toURI());
+                return new FileChannelDataSource(file, getFileName(file), resolveContentType(getFileName(file)),
+                        FileChannelDataSource.DEFAULT_MAP_THRESHOLD);
+            } catch (Exception e) {
+                throw new EmailException("Invalid attachment url " + source, e);
+            }
+        }
+
+        if (contentType == null) return new URLDataSource(source);
+
+        return new URLDataSource(source) {
+            public String getContentType() {
+                return contentType;
+            }
+        };
+    }
+
+    private String getFileName(final File file) {
+        return EmailUtils.isNotBlank(name) ? name : file.getName();
+    }
+
+    private String resolveContentType(final String fileName) {
+        if (EmailUtils.isNotBlank(contentType)) return contentType;
+        if (EmailUtils.isBlank(fileName)) return APPLICATION_OCTET_STREAM;
+        return FileTypeMap.getDefaultFileTypeMap().getContentType(fileName);
     }
 
 }
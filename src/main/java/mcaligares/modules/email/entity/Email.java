@@ -17,7 +17,9 @@
 package mcaligares.modules.email.entity;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.mail.Authenticator;
 import javax.mail.PasswordAuthentication;
@@ -27,6 +29,7 @@ import javax.mail.internet.InternetAddress;
 import mcaligares.modules.email.exception.EmailException;
 import mcaligares.modules.email.exception.InvalidEmailException;
 import mcaligares.modules.email.exception.InvalidUsernameOrPasswordException;
+import mcaligares.modules.email.utils.AddressCache;
 import mcaligares.modules.email.utils.EmailUtils;
 
 /**
@@ -46,6 +49,7 @@ public class Email {
     private List<String> to;
     private List<Attachment> attaches;
     private String htmlFile;
+    private Map<String, String> templateValues;
     private String domain;
     private String folder;
     private Filter filter;
@@ -117,7 +121,8 @@ public class Email {
 
     public InternetAddress getFromAddress() throws AddressException, EmailException {
         if (!EmailUtils.isValidEmail(from)) { throw new InvalidEmailException("Invalid email " + from); }
-        return new InternetAddress(from);
+        // A copy, the parsed address is shared with every other send
+        return (InternetAddress) AddressCache.getDefault().get(from).clone();
     }
 
     public void setFrom(String from) {
@@ -138,10 +143,9 @@ public class Email {
 
     public InternetAddress[] getToAddresses() throws EmailException, AddressException {
         if (to == null || to.isEmpty()) { throw new EmailException("Destination address not configured"); }
-        InternetAddress[] addresses = new InternetAddress[to.size()];
-        for (int i = 0; i < to.size(); i++) {
-            addresses[i] = new InternetAddress(to.get(i));
-        }
+        // Copies, the parsed addresses are shared with every other send
+        final InternetAddress[] addresses = AddressCache.getDefault().get(to);
+        for (int i = 0; i < addresses.length; i++) addresses[i] = (InternetAddress) addresses[i].clone();
         return addresses;
     }
 
@@ -193,6 +197,14 @@ public class Email {
         this.htmlFile = htmlFile;
     }
 
+    public Map<String, String> getTemplateValues() {
+        return templateValues;
+    }
+
+    public void setTemplateValues(Map<String, String> templateValues) {
+        this.templateValues = templateValues;
+    }
+
     public String getFolder() {
         return folder;
     }
@@ -209,6 +221,13 @@ public class Email {
         this.filter = filter;
     }
 
+    /**
+     * Messages of the last receive. Only their envelope is fetched, the body
+     * and the attachments of each are downloaded the first time they are
+     * read, borrowing a pooled connection of the account again. Reading them
+     * stores the attachments, call {@link Message#release()} on every message
+     * once processed.
+     */
     public List<Message> getMessages() {
         return messages;
     }
@@ -231,6 +250,11 @@ public class Email {
         addAttach(new Attachment(name, description, path));
     }
 
+    public void addTemplateValue(String name, String value) {
+        if (templateValues == null) templateValues = new HashMap<String, String>();
+        templateValues.put(name, value);
+    }
+
     public void addMessage(Message message) {
         if (messages == null) messages = new ArrayList<Message>();
         messages.add(message);
@@ -16,7 +16,12 @@
 
 package mcaligares.modules.email.entity;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.mail.Message.RecipientType;
 import javax.mail.search.AndTerm;
@@ -24,6 +29,8 @@ import javax.mail.search.BodyTerm;
 import javax.mail.search.ComparisonTerm;
 import javax.mail.search.FromStringTerm;
 import javax.mail.search.MessageNumberTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
 import javax.mail.search.ReceivedDateTerm;
 import javax.mail.search.RecipientStringTerm;
 import javax.mail.search.SearchTerm;
@@ -35,25 +42,30 @@ import mcaligares.modules.email.exception.EmailFilterException;
 import mcaligares.modules.email.utils.EmailUtils;
 
 /**
- * 
+ * One search criterion, or an AND, OR or NOT of other filters compiled into
+ * a single {@link SearchTerm} so the server searches once.
+ *
  * @author miguel
  *
  */
 public final class Filter {
 
     private Integer num;
+    private Integer endNum;
+    private Integer offset;
     private String term;
     private Date iniDate;
     private Date endDate;
     private FilterType type;
     private FilterDateType dateType;
+    private List<Filter> filters;
 
     public static enum FilterDateType {
         AFTER, BEFORE, BETWEEN
     }
 
     public static enum FilterType {
-        FROM, TO, SUBJECT, BODY, NUMBER, SENT_DATE, RECEIVED_DATE
+        FROM, TO, SUBJECT, BODY, NUMBER, SENT_DATE, RECEIVED_DATE, AND, OR, NOT, RANGE, LATEST
     }
 
     public Filter(Integer num) {
@@ -72,6 +84,51 @@ public final class Filter {
         this(null, null, iniDate, endDate, type, FilterDateType.BETWEEN);
     }
 
+    /**
+     * Filter of type AND, OR or NOT over other filters
+     */
+    public Filter(FilterType type, Filter... filters) {
+        this(null, null, null, null, type, null);
+        this.filters = filters != null ? new ArrayList<Filter>(Arrays.asList(filters)) : null;
+    }
+
+    /**
+     * Messages numbered from start to end, both included
+     */
+    public static Filter range(int start, int end) {
+        final Filter filter = new Filter(start, null, null, null, FilterType.RANGE, null);
+        filter.endNum = end;
+        return filter;
+    }
+
+    /**
+     * The newest count messages
+     */
+    public static Filter latest(int count) {
+        return latest(count, 0);
+    }
+
+    /**
+     * The newest count messages after skipping the offset newest ones, for paging
+     */
+    public static Filter latest(int count, int offset) {
+        final Filter filter = new Filter(count, null, null, null, FilterType.LATEST, null);
+        filter.offset = offset;
+        return filter;
+    }
+
+    public static Filter and(Filter... filters) {
+        return new Filter(FilterType.AND, filters);
+    }
+
+    public static Filter or(Filter... filters) {
+        return new Filter(FilterType.OR, filters);
+    }
+
+    public static Filter not(Filter filter) {
+        return new Filter(FilterType.NOT, filter);
+    }
+
     public Filter(Integer num, String term, Date iniDate, Date endDate, FilterType type, FilterDateType dateType) {
         super();
         this.num = num;
@@ -90,6 +147,22 @@ public final class Filter {
         this.num = num;
     }
 
+    public Integer getEndNum() {
+        return endNum;
+    }
+
+    public void setEndNum(Integer endNum) {
+        this.endNum = endNum;
+    }
+
+    public Integer getOffset() {
+        return offset;
+    }
+
+    public void setOffset(Integer offset) {
+        this.offset = offset;
+    }
+
     public String getTerm() {
         return term;
     }
@@ -130,10 +203,156 @@ public final class Filter {
         this.dateType = dateType;
     }
 
+    public List<Filter> getFilters() {
+        return filters;
+    }
+
+    public void setFilters(List<Filter> filters) {
+        this.filters = filters;
+    }
+
+    public boolean isComposite() {
+        return type == FilterType.AND || type == FilterType.OR || type == FilterType.NOT;
+    }
+
+    /**
+     * @return true for NUMBER, RANGE and LATEST, filters selecting messages by position
+     */
+    public boolean isWindow() {
+        return type == FilterType.NUMBER || type == FilterType.RANGE || type == FilterType.LATEST;
+    }
+
+    /**
+     * Message numbers selected by a window filter in a folder of count
+     * messages, the start greater than the end if none.
+     *
+     * @return start and end, both included
+     */
+    public int[] getWindow(final int count) throws EmailException {
+        checkWindow();
+
+        final int start;
+        final int end;
+        if (type == FilterType.NUMBER) {
+            start = num;
+            end = num;
+        } else if (type == FilterType.RANGE) {
+            start = num;
+            end = endNum;
+        } else {
+            end = count - (offset != null ? offset : 0);
+            start = end - num + 1;
+        }
+        return new int[] { Math.max(start, 1), Math.min(end, count) };
+    }
+
+    /**
+     * Simplified copy of the expression: nested ANDs and ORs are merged into
+     * their parent, repeated operands removed, double negations dropped and
+     * an AND or OR of one filter replaced by the filter. This filter is not
+     * modified.
+     */
+    public Filter normalize() throws EmailException {
+        if (!isComposite()) return this;
+
+        checkOperands();
+        if (type == FilterType.NOT) {
+            final Filter operand = filters.get(0).normalize();
+            // NOT NOT x is x
+            return operand.type == FilterType.NOT ? operand.filters.get(0) : not(operand);
+        }
+
+        // Same operands once, in the order they were given
+        final Map<String, Filter> operands = new LinkedHashMap<String, Filter>();
+        for (Filter filter : filters) {
+            final Filter operand = filter.normalize();
+            if (operand.type == type) {
+                for (Filter nested : operand.filters) operands.put(nested.getKey(), nested);
+            } else {
+                operands.put(operand.getKey(), operand);
+            }
+        }
+
+        if (operands.size() == 1) return operands.values().iterator().next();
+        return new Filter(type, operands.values().toArray(new Filter[operands.size()]));
+    }
+
+    /**
+     * @return a string equal for filters matching the same messages, used as cache key
+     */
+    public String getKey() {
+        final StringBuilder key = new StringBuilder();
+        if (isComposite()) {
+            key.append(type).append('(');
+            if (filters != null) {
+                for (int i = 0; i < filters.size(); i++) {
+                    if (i > 0) key.append(',');
+                    key.append(filters.get(i) != null ? filters.get(i).getKey() : null);
+                }
+            }
+            return key.append(')').toString();
+        }
+
+        key.append(type).append('|').append(dateType).append('|').append(num).append('|');
+        key.append(iniDate != null ? iniDate.getTime() : null).append('|');
+        key.append(endDate != null ? endDate.getTime() : null).append('|');
+        key.append(endNum).append('|').append(offset).append('|');
+        key.append(term);
+        return key.toString();
+    }
+
+    /**
+     * @return the split of this filter between server search and local matching
+     */
+    public FilterPlan getPlan() throws EmailException {
+        // Checking for filter type
+        if (type == null) throw new EmailFilterException("filter type cannot be null");
+
+        return new FilterPlan(this);
+    }
+
+    /**
+     * RANGE and LATEST criteria read the size of the folder for every message
+     * they are matched against, see {@link #getSearchTerm(int)}.
+     */
     public SearchTerm getSearchTerm() throws EmailException {
+        return toSearchTerm(null);
+    }
+
+    /**
+     * Term for a folder of count messages: RANGE and LATEST criteria are
+     * resolved to message numbers once, here.
+     */
+    public SearchTerm getSearchTerm(final int count) throws EmailException {
+        return toSearchTerm(count);
+    }
+
+    /**
+     * @return true if matching the filter depends on the size of the folder
+     */
+    public boolean hasWindowTerm() {
+        if (type == FilterType.RANGE || type == FilterType.LATEST) return true;
+        if (!isComposite() || filters == null) return false;
+
+        for (Filter filter : filters) {
+            if (filter != null && filter.hasWindowTerm()) return true;
+        }
+        return false;
+    }
+
+    private SearchTerm toSearchTerm(final Integer count) throws EmailException {
         // Checking for filter type
         if (type == null) throw new EmailFilterException("filter type cannot be null");
 
+        // Compile the whole expression into one term
+        if (isComposite()) return compile(normalize(), count);
+
+        // Matched on the client, a FilterPlan turns them into a fetch of the range instead
+        if (type.equals(FilterType.RANGE) || type.equals(FilterType.LATEST)) {
+            checkWindow();
+            return new WindowTerm(this, count);
+        }
+
         // Switch filter type
         if (type.equals(FilterType.FROM)) {
 
@@ -232,4 +451,70 @@ public final class Filter {
         }
     }
 
+    /**
+     * Term of a RANGE or LATEST filter, IMAP SEARCH has no equivalent so
+     * JavaMail matches it on the client with the message numbers. Built
+     * without a message count, it asks the folder for one on every match.
+     */
+    private static final class WindowTerm extends SearchTerm {
+        private static final long serialVersionUID = 1L;
+
+        private final Filter filter;
+        private final int[] window;
+
+        private WindowTerm(Filter filter, Integer count) throws EmailException {
+            this.filter = filter;
+            this.window = count != null ? filter.getWindow(count) : null;
+        }
+
+        @Override
+        public boolean match(final javax.mail.Message message) {
+            try {
+                final int[] window = this.window != null ? this.window
+                        : filter.getWindow(message.getFolder().getMessageCount());
+                return message.getMessageNumber() >= window[0] && message.getMessageNumber() <= window[1];
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+    void checkWindow() throws EmailException {
+        if (num == null)
+            throw new EmailFilterException("filter num to FilterType." + type + " cannot be null");
+        if (type == FilterType.RANGE && endNum == null)
+            throw new EmailFilterException("filter end num to FilterType.RANGE cannot be null");
+        if (type == FilterType.LATEST && (num < 0 || (offset != null && offset < 0)))
+            throw new EmailFilterException("filter num and offset to FilterType.LATEST cannot be negative");
+    }
+
+    private static SearchTerm compile(final Filter filter, final Integer count) throws EmailException {
+        if (filter.type == FilterType.NOT) return new NotTerm(filter.filters.get(0).toSearchTerm(count));
+        if (!filter.isComposite()) return filter.toSearchTerm(count);
+
+        final List<SearchTerm> terms = new ArrayList<SearchTerm>(filter.filters.size());
+        for (Filter operand : filter.filters) {
+            final SearchTerm term = compile(operand, count);
+            // The date ranges are ANDs themselves
+            if (filter.type == FilterType.AND && term instanceof AndTerm) {
+                terms.addAll(Arrays.asList(((AndTerm) term).getTerms()));
+            } else {
+                terms.add(term);
+            }
+        }
+
+        final SearchTerm[] array = terms.toArray(new SearchTerm[terms.size()]);
+        return filter.type == FilterType.AND ? new AndTerm(array) : new OrTerm(array);
+    }
+
+    private void checkOperands() throws EmailException {
+        if (filters == null || filters.isEmpty())
+            throw new EmailFilterException("filters to FilterType." + type + " cannot be empty");
+        if (type == FilterType.NOT && filters.size() != 1)
+            throw new EmailFilterException("FilterType.NOT takes exactly one filter");
+        for (Filter filter : filters) {
+            if (filter == null) throw new EmailFilterException("filters to FilterType." + type + " cannot be null");
+        }
+    }
+
 }
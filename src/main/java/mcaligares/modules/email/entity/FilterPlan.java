@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.entity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.search.AndTerm;
+import javax.mail.search.SearchTerm;
+
+import mcaligares.modules.email.entity.Filter.FilterType;
+import mcaligares.modules.email.exception.EmailException;
+
+/**
+ * Splits a filter into the criteria the server searches and the ones that
+ * may be checked on the client. The operands of a top level AND are grouped
+ * by cost:
+ * <pre>
+ * window  NUMBER, RANGE, LATEST, only that range of the folder is fetched
+ * cheap   SENT_DATE, RECEIVED_DATE, always searched by the server
+ * header  FROM, TO, SUBJECT, matched on the envelopes fetched anyway
+ * body    BODY, needs the whole text of every candidate
+ * local   an OR or NOT holding a RANGE or LATEST, IMAP cannot search it
+ * </pre>
+ * The groups are applied in that order. Header and body criteria are
+ * checked locally when few enough candidates are left, otherwise the
+ * server searches them within the candidates. Local criteria are always
+ * matched on the client, over whatever the other groups left. Any other
+ * filter is a single group of the cost of its most expensive criterion,
+ * or local if it holds a window.
+ *
+ * @author miguel
+ *
+ */
+public final class FilterPlan {
+
+    public static final int DEFAULT_HEADER_LIMIT = 500;
+    public static final int DEFAULT_BODY_LIMIT = 20;
+
+    private final List<Filter> windows = new ArrayList<Filter>();
+    private final List<Filter> cheap = new ArrayList<Filter>();
+    private final List<Filter> header = new ArrayList<Filter>();
+    private final List<Filter> body = new ArrayList<Filter>();
+    private final List<Filter> local = new ArrayList<Filter>();
+    private final boolean localHeaders;
+    private final SearchTerm cheapTerm;
+    private final SearchTerm headerTerm;
+    private final SearchTerm bodyTerm;
+
+    FilterPlan(Filter filter) throws EmailException {
+        final Filter normalized = filter.normalize();
+        final List<Filter> operands = normalized.getType() == FilterType.AND
+                ? normalized.getFilters() : Collections.singletonList(normalized);
+
+        boolean localHeaders = false;
+        for (Filter operand : operands) {
+            if (operand.isWindow()) {
+                operand.checkWindow();
+                windows.add(operand);
+                continue;
+            }
+
+            final int cost = getCost(operand);
+            if (operand.hasWindowTerm()) {
+                local.add(operand);
+                localHeaders |= cost > 0;
+                continue;
+            }
+            (cost == 0 ? cheap : cost == 1 ? header : body).add(operand);
+        }
+
+        this.localHeaders = localHeaders;
+        this.cheapTerm = and(cheap, null);
+        this.headerTerm = and(header, null);
+        this.bodyTerm = and(body, null);
+    }
+
+    /**
+     * NUMBER, RANGE and LATEST filters, the messages are those in all of them
+     */
+    public List<Filter> getWindows() {
+        return Collections.unmodifiableList(windows);
+    }
+
+    /**
+     * ORs and NOTs holding a RANGE or LATEST, always matched on the client
+     */
+    public List<Filter> getLocal() {
+        return Collections.unmodifiableList(local);
+    }
+
+    /**
+     * Criteria always searched by the server, null if none
+     */
+    public SearchTerm getCheapTerm() {
+        return cheapTerm;
+    }
+
+    /**
+     * Criteria on the envelope, null if none
+     */
+    public SearchTerm getHeaderTerm() {
+        return headerTerm;
+    }
+
+    /**
+     * Criteria on the text, null if none
+     */
+    public SearchTerm getBodyTerm() {
+        return bodyTerm;
+    }
+
+    /**
+     * Runs the plan on an open folder.
+     *
+     * @param envelope fetch profile used for the local header match, the
+     *        one the messages are fetched with afterwards
+     * @param headerLimit most candidates whose envelopes are matched locally
+     * @param bodyLimit most candidates whose texts are matched locally
+     */
+    public Message[] search(final Folder folder, final FetchProfile envelope, final int headerLimit,
+            final int bodyLimit) throws MessagingException, EmailException {
+        // Read once, also for the windows nested in an OR or NOT
+        final int count = !windows.isEmpty() || !local.isEmpty() ? folder.getMessageCount() : -1;
+
+        // Null while every message is a candidate
+        Message[] messages = null;
+        if (!windows.isEmpty()) {
+            // Only the range is fetched, never the whole folder
+            int start = 1;
+            int end = count;
+            for (Filter window : windows) {
+                final int[] range = window.getWindow(count);
+                start = Math.max(start, range[0]);
+                end = Math.min(end, range[1]);
+            }
+            if (start > end) return new Message[0];
+
+            messages = folder.getMessages(start, end);
+        }
+
+        if (cheapTerm != null) {
+            messages = messages != null ? folder.search(cheapTerm, messages) : folder.search(cheapTerm);
+        }
+
+        if (headerTerm != null) {
+            // Without a narrower set local matching would read every envelope
+            if (messages != null && messages.length <= headerLimit) {
+                folder.fetch(messages, envelope);
+                messages = match(messages, headerTerm);
+            } else {
+                messages = messages != null ? folder.search(headerTerm, messages) : folder.search(headerTerm);
+            }
+        }
+
+        if (bodyTerm != null) {
+            final int candidates = messages != null ? messages.length : folder.getMessageCount();
+            if (candidates <= bodyLimit) {
+                messages = match(messages != null ? messages : folder.getMessages(), bodyTerm);
+            } else {
+                messages = messages != null ? folder.search(bodyTerm, messages) : folder.search(bodyTerm);
+            }
+        }
+
+        if (!local.isEmpty()) {
+            // The last step, so it reads as few messages as possible
+            if (messages == null) messages = folder.getMessages();
+            if (localHeaders) folder.fetch(messages, envelope);
+            messages = match(messages, and(local, count));
+        }
+
+        return messages != null ? messages : folder.getMessages();
+    }
+
+    private static Message[] match(final Message[] messages, final SearchTerm term) {
+        final List<Message> matched = new ArrayList<Message>(messages.length);
+        for (Message message : messages) {
+            if (term.match(message)) matched.add(message);
+        }
+        return matched.toArray(new Message[matched.size()]);
+    }
+
+    /**
+     * @param count messages of the folder, null to build the terms without it
+     */
+    private static SearchTerm and(final List<Filter> filters, final Integer count) throws EmailException {
+        final List<SearchTerm> terms = new ArrayList<SearchTerm>(filters.size());
+        for (Filter filter : filters) terms.add(count != null ? filter.getSearchTerm(count) : filter.getSearchTerm());
+
+        if (terms.isEmpty()) return null;
+        if (terms.size() == 1) return terms.get(0);
+        return new AndTerm(terms.toArray(new SearchTerm[terms.size()]));
+    }
+
+    /**
+     * @return 0 cheap, 1 header, 2 body
+     */
+    private static int getCost(final Filter filter) {
+        if (filter.isComposite()) {
+            int cost = 0;
+            for (Filter operand : filter.getFilters()) cost = Math.max(cost, getCost(operand));
+            return cost;
+        }
+
+        switch (filter.getType()) {
+        case FROM:
+        case TO:
+        case SUBJECT:
+            return 1;
+        case BODY:
+            return 2;
+        default:
+            return 0;
+        }
+    }
+
+}
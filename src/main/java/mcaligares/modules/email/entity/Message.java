@@ -16,7 +16,7 @@
 
 package mcaligares.modules.email.entity;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -28,7 +28,8 @@ import javax.mail.internet.MimeMultipart;
 
 import mcaligares.modules.email.exception.EmailException;
 import mcaligares.modules.email.manager.EmailManager;
-import mcaligares.modules.email.utils.EmailUtils;
+import mcaligares.modules.email.store.AttachmentHandle;
+import mcaligares.modules.email.store.AttachmentStore;
 
 /**
  * 
@@ -41,14 +42,30 @@ public final class Message {
     private String subject;
     private String content;
     private List<String> to;
-    private List<File> attaches;
+    private List<AttachmentHandle> attaches;
     private Exception ex;
+    private boolean failed;
+    private javax.mail.Message source;
+    private Loader loader;
+
+    /**
+     * Gets a detached message back from the server, see {@link Message#detach(Loader)}.
+     */
+    public interface Loader {
+
+        /**
+         * Finds the received message again, hands it to
+         * {@link Message#read(javax.mail.Message)} and gives its connection back.
+         */
+        void load(Message message) throws Exception;
+
+    }
 
     public Message() {
         super();
     }
 
-    public Message(String from, String subject, String content, List<String> to, List<File> attaches) {
+    public Message(String from, String subject, String content, List<String> to, List<AttachmentHandle> attaches) {
         super();
         this.from = from;
         this.subject = subject;
@@ -57,22 +74,63 @@ public final class Message {
         this.attaches = attaches;
     }
 
+    /**
+     * View of a received message. Only the envelope is read here, the body
+     * and the attachments are fetched the first time they are asked for,
+     * through this message until it is detached and through the
+     * {@link Loader} it was detached with afterwards.
+     */
     public Message(final javax.mail.Message message) throws Exception {
         if (message == null) throw new NullPointerException();
 
-        try {
-            // Get first from address
-            // TODO only first?
-            this.from = message.getFrom()[0].toString();
+        // Get first from address
+        // TODO only first?
+        final Address[] fromAddresses = message.getFrom();
+        if (fromAddresses != null && fromAddresses.length > 0) this.from = fromAddresses[0].toString();
 
-            // Get subject
-            this.subject = message.getSubject();
+        // Get subject
+        this.subject = message.getSubject();
 
-            // Add address
-            for (Address address : message.getReplyTo()) {
+        // Add address
+        final Address[] replyTo = message.getReplyTo();
+        if (replyTo != null) {
+            for (Address address : replyTo) {
                 addTo(address.toString());
             }
+        }
+
+        this.source = message;
+    }
+
+    /**
+     * Fetches the body and the attachments if they were not loaded yet.
+     * Failures are kept in {@link #getError()}.
+     */
+    public synchronized void load() {
+        if (source != null) {
+            read(source);
+
+        } else if (loader != null) {
+            final Loader reloader = loader;
+            loader = null;
+            try {
+                reloader.load(this);
+            } catch (Exception e) {
+                this.ex = e;
+                this.failed = true;
+            }
+        }
+    }
+
+    /**
+     * Reads the body and the attachments from the received message, used by
+     * a {@link Loader} once it found the message again.
+     */
+    public synchronized void read(final javax.mail.Message message) {
+        source = null;
+        loader = null;
 
+        try {
             // Get content
             Object content = message.getContent();
 
@@ -89,7 +147,8 @@ public final class Message {
 
                     if (MimeBodyPart.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
                         try {
-                            addAttach(EmailUtils.createFileTemp(part.getInputStream(), part.getFileName()));
+                            // Stored once however many messages carry it
+                            addAttach(AttachmentStore.getDefault().put(part.getInputStream(), part.getFileName()));
                         } catch (Exception e) {
                             this.ex = e;
                         }
@@ -119,10 +178,44 @@ public final class Message {
                 throw new EmailException("Message type not found");
             }
         } catch (Exception e) {
-            throw e;
+            this.ex = e;
+            this.failed = true;
         }
     }
 
+    /**
+     * Drops the link to the received message, called once its folder goes
+     * back to the pool. A body not loaded by then is reported as an error
+     * rather than read through a connection another thread may be using.
+     */
+    public synchronized void detach() {
+        detach(null);
+    }
+
+    /**
+     * Drops the link to the received message, called once its folder goes
+     * back to the pool. A body not loaded by then is read through the loader
+     * the first time it is asked for.
+     */
+    public synchronized void detach(final Loader loader) {
+        if (source == null) return;
+
+        source = null;
+        if (loader != null) {
+            this.loader = loader;
+            return;
+        }
+        ex = new EmailException("message body was not loaded while its folder was open");
+        failed = true;
+    }
+
+    /**
+     * @return true once the body and the attachments are available
+     */
+    public synchronized boolean isLoaded() {
+        return source == null && loader == null;
+    }
+
     public String getFrom() {
         return from;
     }
@@ -139,11 +232,17 @@ public final class Message {
         this.subject = subject;
     }
 
+    /**
+     * @throws IllegalStateException if the body could not be loaded, the
+     * cause is in {@link #getError()}
+     */
     public String getContent() {
+        checkLoaded();
         return content;
     }
 
-    public void setContent(String content) {
+    public synchronized void setContent(String content) {
+        load();
         this.content = content;
     }
 
@@ -155,34 +254,67 @@ public final class Message {
         this.to = to;
     }
 
-    public List<File> getAttaches() {
+    /**
+     * Handles into the {@link AttachmentStore}, each holding a reference to
+     * its blob. Release them, or the whole message with {@link #release()},
+     * once processed: the blob is only deleted with its last reference.
+     */
+    public List<AttachmentHandle> getAttaches() {
+        checkLoaded();
         return attaches;
     }
 
-    public void setAttaches(List<File> attaches) {
+    public synchronized void setAttaches(List<AttachmentHandle> attaches) {
+        load();
         this.attaches = attaches;
     }
 
     public Exception getError() {
+        load();
         return ex;
     }
 
     public boolean hasError() {
-        return ex != null;
+        return getError() != null;
     }
 
     public boolean hasAttaches() {
+        final List<AttachmentHandle> attaches = getAttaches();
         return attaches != null && !attaches.isEmpty();
     }
 
+    private synchronized void checkLoaded() {
+        load();
+        // A missing body must not look like an empty one
+        if (failed) throw new IllegalStateException("message body could not be loaded", ex);
+    }
+
+    /**
+     * Releases the attachment handles read so far. A message whose body was
+     * never read holds none and is not loaded here.
+     */
+    public synchronized void release() throws IOException {
+        if (attaches == null) return;
+
+        IOException failure = null;
+        for (AttachmentHandle attach : attaches) {
+            try {
+                attach.release();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
     public void addTo(String address) {
         if (to == null) to = new ArrayList<String>();
         to.add(address);
     }
 
-    public void addAttach(File file) {
-        if (attaches == null) attaches = new ArrayList<File>();
-        attaches.add(file);
+    public void addAttach(AttachmentHandle attach) {
+        if (attaches == null) attaches = new ArrayList<AttachmentHandle>();
+        attaches.add(attach);
     }
 
 }
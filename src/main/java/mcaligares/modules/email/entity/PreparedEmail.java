@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.entity;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.mime.EncodedContent;
+import mcaligares.modules.email.mime.EncodedMimeMessage;
+import mcaligares.modules.email.session.AccountConfig;
+
+/**
+ * An {@link Email} validated and resolved once, to be sent any number of
+ * times from any number of threads: account settings and session,
+ * addresses, encoded headers and encoded body. Immutable, later changes to
+ * the email are not seen. Built by
+ * {@link mcaligares.modules.email.manager.EmailManager#prepare(Email)},
+ * prepare it again if the providers or the properties change.
+ *
+ * @author miguel
+ *
+ */
+public final class PreparedEmail {
+
+    private static final String TO = "To";
+
+    private final AccountConfig config;
+    private final String provider;
+    private final String username;
+    private final InternetAddress[] to;
+    private final String fromHeader;
+    private final String toHeader;
+    private final String subjectHeader;
+    private final EncodedContent content;
+
+    public PreparedEmail(AccountConfig config, String provider, String username, InternetAddress from,
+            InternetAddress[] to, String subject, EncodedContent content) throws EmailException {
+        super();
+        this.config = config;
+        this.provider = provider;
+        this.username = username;
+        this.to = to.clone();
+        this.content = content;
+
+        // Rendered as MimeMessage would on every send
+        this.fromHeader = from.toString();
+        this.toHeader = InternetAddress.toString(this.to, TO.length() + 2);
+        try {
+            this.subjectHeader = EncodedMimeMessage.encodeSubject(subject);
+        } catch (UnsupportedEncodingException e) {
+            throw new EmailException(e);
+        }
+    }
+
+    /**
+     * Builds the message of one send, only its headers are new.
+     */
+    public MimeMessage createMessage() throws MessagingException {
+        final MimeMessage message = new EncodedMimeMessage(config.getSession(), content);
+        message.setHeader(EncodedMimeMessage.SUBJECT, subjectHeader);
+        message.setHeader(EncodedMimeMessage.FROM, fromHeader);
+        message.setHeader(TO, toHeader);
+        message.setSentDate(new Date());
+        return message;
+    }
+
+    public AccountConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Provider name, its send rate applies
+     */
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public InternetAddress[] getTo() {
+        return to.clone();
+    }
+
+    public EncodedContent getContent() {
+        return content;
+    }
+
+}
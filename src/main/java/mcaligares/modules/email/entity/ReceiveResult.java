@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.entity;
+
+import mcaligares.modules.email.exception.EmailException;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public final class ReceiveResult {
+
+    private final Email email;
+    private final EmailException error;
+
+    public ReceiveResult(Email email) {
+        this(email, null);
+    }
+
+    public ReceiveResult(Email email, EmailException error) {
+        super();
+        this.email = email;
+        this.error = error;
+    }
+
+    /**
+     * The target account and folder, holding the received messages
+     */
+    public Email getEmail() {
+        return email;
+    }
+
+    public EmailException getError() {
+        return error;
+    }
+
+    public boolean hasError() {
+        return error != null;
+    }
+
+    public boolean isReceived() {
+        return error == null;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.entity;
+
+import mcaligares.modules.email.exception.EmailException;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public final class SendResult {
+
+    private final Email email;
+    private final String recipient;
+    private final EmailException error;
+    private final long throttleWait;
+
+    public SendResult(Email email) {
+        this(email, null, null);
+    }
+
+    public SendResult(Email email, EmailException error) {
+        this(email, null, error);
+    }
+
+    public SendResult(Email email, String recipient) {
+        this(email, recipient, null);
+    }
+
+    public SendResult(Email email, String recipient, EmailException error) {
+        this(email, recipient, error, 0);
+    }
+
+    public SendResult(Email email, String recipient, EmailException error, long throttleWait) {
+        super();
+        this.email = email;
+        this.recipient = recipient;
+        this.error = error;
+        this.throttleWait = throttleWait;
+    }
+
+    public Email getEmail() {
+        return email;
+    }
+
+    /**
+     * Destination of a bulk send, null when the whole email was sent
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public EmailException getError() {
+        return error;
+    }
+
+    /**
+     * Milliseconds the send waited for the provider rate limit
+     */
+    public long getThrottleWait() {
+        return throttleWait;
+    }
+
+    public boolean hasError() {
+        return error != null;
+    }
+
+    public boolean isSent() {
+        return error == null;
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mcaligares.modules.email.entity.Filter.FilterType;
+
+/**
+ * Inverted index of the subjects and text bodies of one account folder,
+ * from every word to the UIDs of the messages containing it.
+ * <p>
+ * IMAP text searches match substrings, so a query is resolved to the
+ * messages having, for every word of the query, a word that contains it.
+ * That is a superset of the real matches, which have to be checked against
+ * the message text.
+ * <p>
+ * Messages are indexed in UID order, every UID up to
+ * {@link #getIndexedThrough()} is indexed unless it was expunged, so only
+ * the messages above it have to be read from the server.
+ *
+ * @author miguel
+ *
+ */
+public final class FolderIndex {
+
+    private static final int MAGIC = 0x4D434958;
+    private static final int VERSION = 2;
+
+    private final File file;
+
+    private final Set<Long> indexed = new HashSet<Long>();
+    private final Map<String, Postings> subjects = new HashMap<String, Postings>();
+    private final Map<String, Postings> bodies = new HashMap<String, Postings>();
+
+    private long uidValidity = -1;
+    private long indexedThrough;
+    private boolean dirty;
+
+    /**
+     * UIDs of the messages containing a word, in the order they were added.
+     */
+    private static final class Postings {
+        private long[] uids = new long[4];
+        private int size;
+
+        private void add(final long uid) {
+            if (size == uids.length) {
+                final long[] grown = new long[size * 2];
+                System.arraycopy(uids, 0, grown, 0, size);
+                uids = grown;
+            }
+            uids[size++] = uid;
+        }
+    }
+
+    FolderIndex(File file) {
+        this.file = file;
+
+        try {
+            load();
+        } catch (Exception e) {
+            // Missing or unreadable, start empty
+            reset();
+        }
+    }
+
+    /**
+     * Starts over if the UIDVALIDITY changed, the indexed uids mean nothing then.
+     *
+     * @return true if the index was kept
+     */
+    public synchronized boolean validate(final long uidValidity) {
+        if (uidValidity == this.uidValidity) return true;
+
+        reset();
+        this.uidValidity = uidValidity;
+        dirty = true;
+        return false;
+    }
+
+    public synchronized boolean isIndexed(final long uid) {
+        return indexed.contains(uid);
+    }
+
+    /**
+     * Indexes a message, once per uid.
+     *
+     * @param texts text parts of the body
+     */
+    public synchronized void add(final long uid, final String subject, final Collection<String> texts) {
+        if (!indexed.add(uid)) return;
+
+        addWords(subjects, uid, subject);
+        if (texts != null) {
+            // Once per message however many parts have the word
+            final Set<String> words = new HashSet<String>();
+            for (String text : texts) words.addAll(TextIndex.getWords(text));
+            for (String word : words) addPosting(bodies, word, uid);
+        }
+        dirty = true;
+    }
+
+    /**
+     * @return the highest uid below which every message was indexed
+     */
+    public synchronized long getIndexedThrough() {
+        return indexedThrough;
+    }
+
+    /**
+     * Moves the indexed position forward, once every message up to the uid
+     * was added.
+     */
+    public synchronized void setIndexedThrough(final long uid) {
+        if (uid <= indexedThrough) return;
+        indexedThrough = uid;
+        dirty = true;
+    }
+
+    /**
+     * Drops the uids found expunged.
+     */
+    public synchronized void remove(final Collection<Long> expunged) {
+        if (indexed.removeAll(expunged)) dirty = true;
+    }
+
+    /**
+     * @return the indexed uids that may match a SUBJECT or BODY filter, or
+     *         null if the term has no words to narrow the search
+     */
+    public synchronized Set<Long> getCandidates(final FilterType type, final String term) {
+        final Map<String, Postings> words = type == FilterType.SUBJECT ? subjects : bodies;
+        final List<String> query = TextIndex.getWords(term);
+        if (query.isEmpty()) return null;
+
+        Set<Long> candidates = null;
+        for (String part : query) {
+            // Every indexed word containing this part of the query
+            final Set<Long> matching = new HashSet<Long>();
+            for (Map.Entry<String, Postings> word : words.entrySet()) {
+                if (!word.getKey().contains(part)) continue;
+
+                final Postings postings = word.getValue();
+                for (int i = 0; i < postings.size; i++) {
+                    if (candidates == null || candidates.contains(postings.uids[i])) matching.add(postings.uids[i]);
+                }
+            }
+            candidates = matching;
+            if (candidates.isEmpty()) break;
+        }
+
+        candidates.retainAll(indexed);
+        return candidates;
+    }
+
+    public synchronized int size() {
+        return indexed.size();
+    }
+
+    /**
+     * Writes the index, replacing the previous one atomically. Uids of
+     * expunged messages are left out.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+
+        final File partial = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream stream = new FileOutputStream(partial);
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(uidValidity);
+            output.writeLong(indexedThrough);
+
+            output.writeInt(indexed.size());
+            for (long uid : indexed) output.writeLong(uid);
+
+            writeWords(output, subjects);
+            writeWords(output, bodies);
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        try {
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+    }
+
+    private void writeWords(final DataOutputStream output, final Map<String, Postings> words) throws IOException {
+        // Prune what expunged messages left behind
+        final Iterator<Postings> values = words.values().iterator();
+        while (values.hasNext()) {
+            final Postings postings = values.next();
+            int size = 0;
+            for (int i = 0; i < postings.size; i++) {
+                if (indexed.contains(postings.uids[i])) postings.uids[size++] = postings.uids[i];
+            }
+            postings.size = size;
+            if (size == 0) values.remove();
+        }
+
+        output.writeInt(words.size());
+        for (Map.Entry<String, Postings> word : words.entrySet()) {
+            output.writeUTF(word.getKey());
+            output.writeInt(word.getValue().size);
+            for (int i = 0; i < word.getValue().size; i++) output.writeLong(word.getValue().uids[i]);
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.isFile()) return;
+
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) throw new IOException("not a text index");
+
+            uidValidity = input.readLong();
+            indexedThrough = input.readLong();
+            final int count = input.readInt();
+            for (int i = 0; i < count; i++) indexed.add(input.readLong());
+
+            readWords(input, subjects);
+            readWords(input, bodies);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void readWords(final DataInputStream input, final Map<String, Postings> words) throws IOException {
+        final int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            final String word = input.readUTF();
+            final Postings postings = new Postings();
+            postings.size = input.readInt();
+            postings.uids = new long[Math.max(postings.size, 4)];
+            for (int j = 0; j < postings.size; j++) postings.uids[j] = input.readLong();
+            words.put(word, postings);
+        }
+    }
+
+    private void reset() {
+        uidValidity = -1;
+        indexedThrough = 0;
+        indexed.clear();
+        subjects.clear();
+        bodies.clear();
+    }
+
+    private static void addWords(final Map<String, Postings> words, final long uid, final String text) {
+        for (String word : new HashSet<String>(TextIndex.getWords(text))) addPosting(words, word, uid);
+    }
+
+    private static void addPosting(final Map<String, Postings> words, final String word, final long uid) {
+        Postings postings = words.get(word);
+        if (postings == null) {
+            postings = new Postings();
+            words.put(word, postings);
+        }
+        postings.add(uid);
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ParseException;
+
+import com.sun.mail.util.DecodingException;
+
+/**
+ * Local full text index of received messages, one {@link FolderIndex} per
+ * account and folder, used to answer SUBJECT and BODY filters without a
+ * server side search.
+ * <p>
+ * Words are the runs of letters and digits, compared ignoring case the same
+ * way {@link javax.mail.search.StringTerm} does.
+ * <p>
+ * Nothing indexes in the background: messages are indexed by the searches
+ * that need them, which download their whole bodies first.
+ *
+ * @author miguel
+ *
+ */
+public class TextIndex {
+
+    private static final String SUFFIX = ".idx";
+
+    private final File directory;
+    private final ConcurrentMap<String, FolderIndex> folders = new ConcurrentHashMap<String, FolderIndex>();
+
+    public TextIndex(File directory) throws IOException {
+        super();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create index directory " + directory);
+
+        this.directory = directory;
+    }
+
+    public FolderIndex getFolder(final String account, final String folder) {
+        final String name = fileName(account, folder);
+
+        FolderIndex index = folders.get(name);
+        if (index == null) {
+            index = new FolderIndex(new File(directory, name + SUFFIX));
+            final FolderIndex previous = folders.putIfAbsent(name, index);
+            if (previous != null) index = previous;
+        }
+        return index;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the words of a text, folded to compare ignoring case
+     */
+    public static List<String> getWords(final String text) {
+        if (text == null) return Collections.emptyList();
+
+        final List<String> words = new ArrayList<String>();
+        final StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            final char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(fold(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Same match as {@link javax.mail.search.StringTerm}, the pattern
+     * anywhere in the text ignoring case.
+     */
+    public static boolean contains(final String text, final String pattern) {
+        if (text == null || pattern == null) return false;
+
+        final int last = text.length() - pattern.length();
+        for (int i = 0; i <= last; i++) {
+            if (text.regionMatches(true, i, pattern, 0, pattern.length())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Text of every text part, the parts a {@link javax.mail.search.BodyTerm}
+     * looks into. Parts that cannot be decoded are skipped, failures to read
+     * them, a closed folder for instance, are thrown.
+     */
+    public static List<String> getTexts(final Part part) throws MessagingException, IOException {
+        final List<String> texts = new ArrayList<String>();
+        addTexts(part, texts);
+        return texts;
+    }
+
+    private static void addTexts(final Part part, final List<String> texts) throws MessagingException,
+            IOException {
+        try {
+            if (part.isMimeType("text/*")) {
+                final Object content = part.getContent();
+                if (content instanceof String) texts.add((String) content);
+
+            } else if (part.isMimeType("multipart/*")) {
+                final Multipart multipart = (Multipart) part.getContent();
+                for (int i = 0; i < multipart.getCount(); i++) addTexts(multipart.getBodyPart(i), texts);
+
+            } else if (part.isMimeType("message/rfc822")) {
+                addTexts((Part) part.getContent(), texts);
+            }
+        } catch (UnsupportedEncodingException e) {
+            // Not searchable, as for BodyTerm
+        } catch (DecodingException e) {
+            // Not searchable, as for BodyTerm
+        } catch (ParseException e) {
+            // Not searchable, as for BodyTerm
+        }
+    }
+
+    private static char fold(final char c) {
+        // Chars equal to regionMatches ignoring case fold to the same one
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static String fileName(final String account, final String folder) {
+        try {
+            return URLEncoder.encode(account.toLowerCase() + "/" + folder, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
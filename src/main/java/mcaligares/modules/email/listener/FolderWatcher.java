@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.listener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.search.SearchTerm;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+import mcaligares.modules.email.manager.MessageHandler;
+import mcaligares.modules.email.session.AccountConfig;
+
+/**
+ * Watches one account folder on its own connection and hands the new
+ * messages to a {@link MessageHandler}.
+ * <p>
+ * Waits with IMAP IDLE when the server supports it, re-issued every idle
+ * renew period since servers drop idle connections after ~30 minutes.
+ * Otherwise polls with a NOOP, starting at the min poll interval and
+ * doubling it up to the max while the folder stays quiet. Broken
+ * connections are reopened with an exponential backoff and the messages
+ * that arrived meanwhile are still delivered.
+ * <p>
+ * The last uid moves past a message only once the handler returned, so a
+ * dropped connection never loses one. A handler failure closes the
+ * watcher and is reported to the {@link WatchListener}.
+ *
+ * @author miguel
+ *
+ */
+public class FolderWatcher {
+
+    private static final FetchProfile ENVELOPE_PROFILE = new FetchProfile();
+
+    static {
+        ENVELOPE_PROFILE.add(FetchProfile.Item.ENVELOPE);
+        ENVELOPE_PROFILE.add(FetchProfile.Item.FLAGS);
+        ENVELOPE_PROFILE.add(FetchProfile.Item.CONTENT_INFO);
+        ENVELOPE_PROFILE.add(IMAPFolder.FetchProfileItem.SIZE);
+    }
+
+    /** Shared by all the watchers, the renew task only sends one command */
+    private static ScheduledExecutorService renewScheduler;
+
+    private final AccountConfig config;
+    private final String folderName;
+    private final SearchTerm filter;
+    private final MessageHandler handler;
+
+    private long idleRenew = 9 * 60 * 1000;
+    private long minPollInterval = 5000;
+    private long maxPollInterval = 5 * 60 * 1000;
+    private long maxReconnectDelay = 5 * 60 * 1000;
+
+    private volatile boolean closed;
+    private volatile boolean idleSupported;
+    private volatile Store store;
+    private volatile Folder folder;
+    private volatile WatchListener listener;
+    private Thread thread;
+    private ScheduledFuture<?> renewer;
+
+    private long uidValidity = -1;
+    private volatile long lastUid;
+
+    public FolderWatcher(AccountConfig config, String folderName, SearchTerm filter, MessageHandler handler) {
+        super();
+        if (config == null) throw new NullPointerException("account config cannot be null");
+        if (folderName == null) throw new NullPointerException("folder name cannot be null");
+        if (handler == null) throw new NullPointerException("message handler cannot be null");
+
+        this.config = config;
+        this.folderName = folderName;
+        this.filter = filter;
+        this.handler = handler;
+    }
+
+    public synchronized void start() {
+        if (thread != null) throw new IllegalStateException("watcher already started");
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "email-watch-" + config.getKey().getUsername() + "-" + folderName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching and closes the connection.
+     */
+    public void close() {
+        closed = true;
+        final Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        // Aborts a running IDLE
+        disconnect();
+        if (current != null && current != Thread.currentThread()) current.interrupt();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isConnected() {
+        final Folder current = folder;
+        return current != null && current.isOpen();
+    }
+
+    /**
+     * @return false when the server lacks IDLE and the folder is polled
+     */
+    public boolean isIdleSupported() {
+        return idleSupported;
+    }
+
+    /**
+     * @return the uid of the last message handed to the handler, or the one
+     * before the first new message
+     */
+    public long getLastUid() {
+        return lastUid;
+    }
+
+    public void setListener(WatchListener listener) {
+        this.listener = listener;
+    }
+
+    public void setIdleRenew(long idleRenew) {
+        this.idleRenew = idleRenew;
+    }
+
+    public void setPollInterval(long minPollInterval, long maxPollInterval) {
+        this.minPollInterval = minPollInterval;
+        this.maxPollInterval = Math.max(minPollInterval, maxPollInterval);
+    }
+
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    private void watch() {
+        long reconnectDelay = 1000;
+
+        while (!closed) {
+            try {
+                connect();
+                reconnectDelay = 1000;
+
+                long pollInterval = minPollInterval;
+                while (!closed) {
+                    final boolean delivered = deliverNew();
+                    if (closed) break;
+
+                    if (idleSupported) {
+                        // Returns once the server reports a change or the renew task aborts it
+                        ((IMAPFolder) folder).idle(true);
+                    } else {
+                        pollInterval = delivered ? minPollInterval : Math.min(pollInterval * 2, maxPollInterval);
+                        Thread.sleep(pollInterval);
+                        // NOOP, picks up the new messages
+                        folder.getMessageCount();
+                    }
+                }
+            } catch (InterruptedException e) {
+                if (closed) break;
+            } catch (Exception e) {
+                if (closed) break;
+                final WatchListener current = listener;
+                if (current != null) {
+                    try {
+                        current.connectionFailed(this, e);
+                    } catch (RuntimeException ignored) {}
+                }
+            }
+
+            disconnect();
+            if (closed) break;
+
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                if (closed) break;
+            }
+            reconnectDelay = Math.min(reconnectDelay * 2, maxReconnectDelay);
+        }
+
+        disconnect();
+    }
+
+    private void connect() throws Exception {
+        final Store newStore = config.getSession().getStore();
+        newStore.connect(config.getHost(), config.getPort() != null ? config.getPort() : -1,
+                config.getKey().getUsername(), config.getKey().getPassword());
+        store = newStore;
+
+        final Folder newFolder = newStore.getFolder(folderName);
+        newFolder.open(Folder.READ_ONLY);
+        folder = newFolder;
+
+        idleSupported = newStore instanceof IMAPStore && ((IMAPStore) newStore).hasCapability("IDLE");
+
+        final UIDFolder uidFolder = (UIDFolder) newFolder;
+        final long validity = uidFolder.getUIDValidity();
+        if (validity != uidValidity) {
+            // First connection or folder recreated, only mail arriving from now on
+            uidValidity = validity;
+            final long next = newFolder instanceof IMAPFolder ? ((IMAPFolder) newFolder).getUIDNext() : -1;
+            final int count = newFolder.getMessageCount();
+            lastUid = next > 0 ? next - 1 : count > 0 ? uidFolder.getUID(newFolder.getMessage(count)) : 0;
+        }
+
+        if (idleSupported) scheduleRenew(newFolder);
+    }
+
+    /**
+     * @return true if there were new messages
+     */
+    private boolean deliverNew() throws Exception {
+        final UIDFolder uidFolder = (UIDFolder) folder;
+
+        // n:* always matches the last message, even when its uid is lower than n
+        final List<Message> found = new ArrayList<Message>();
+        for (Message message : uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID)) {
+            if (message != null && uidFolder.getUID(message) > lastUid) found.add(message);
+        }
+        if (found.isEmpty()) return false;
+
+        final Message[] messages = found.toArray(new Message[found.size()]);
+        final Set<Message> matching = new HashSet<Message>(
+                Arrays.asList(filter != null ? folder.search(filter, messages) : messages));
+        folder.fetch(messages, ENVELOPE_PROFILE);
+
+        // Already in uid order, the same as the message numbers
+        for (Message message : messages) {
+            if (closed) break;
+
+            if (matching.contains(message)) {
+                final mcaligares.modules.email.entity.Message received =
+                        new mcaligares.modules.email.entity.Message(message);
+                final boolean goOn;
+                try {
+                    goOn = handler.handle(received);
+                } catch (Exception e) {
+                    close();
+                    final WatchListener current = listener;
+                    if (current != null) {
+                        try {
+                            current.handlerFailed(this, received, e);
+                        } catch (RuntimeException ignored) {}
+                    }
+                    break;
+                } finally {
+                    received.detach();
+                }
+                lastUid = uidFolder.getUID(message);
+                if (!goOn) {
+                    close();
+                    break;
+                }
+            } else {
+                lastUid = uidFolder.getUID(message);
+            }
+        }
+        return true;
+    }
+
+    private synchronized void scheduleRenew(final Folder watched) {
+        if (renewer != null) renewer.cancel(false);
+        renewer = null;
+        if (closed || idleRenew <= 0) return;
+
+        renewer = getRenewScheduler().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    // Any command on the folder ends the running IDLE
+                    if (watched.isOpen()) watched.getMessageCount();
+                } catch (Exception e) {}
+            }
+        }, idleRenew, idleRenew, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getRenewScheduler() {
+        if (renewScheduler == null) {
+            renewScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    final Thread renew = new Thread(task, "email-watch-renew");
+                    renew.setDaemon(true);
+                    return renew;
+                }
+            });
+        }
+        return renewScheduler;
+    }
+
+    private void disconnect() {
+        synchronized (this) {
+            if (renewer != null) renewer.cancel(false);
+            renewer = null;
+        }
+
+        final Folder currentFolder = folder;
+        final Store currentStore = store;
+        folder = null;
+        store = null;
+
+        try {
+            if (currentFolder != null && currentFolder.isOpen()) currentFolder.close(false);
+        } catch (Exception e) {}
+        try {
+            if (currentStore != null) currentStore.close();
+        } catch (Exception e) {}
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.listener;
+
+import mcaligares.modules.email.entity.Message;
+
+/**
+ * Notified by a {@link FolderWatcher}, from its own thread.
+ *
+ * @author miguel
+ *
+ */
+public interface WatchListener {
+
+    /**
+     * The handler threw while handling the message. The watcher is closed
+     * and its last uid is still the one before the message.
+     */
+    void handlerFailed(FolderWatcher watcher, Message message, Exception error);
+
+    /**
+     * The connection was lost or could not be opened, the watcher keeps
+     * reconnecting.
+     */
+    void connectionFailed(FolderWatcher watcher, Exception error);
+
+}
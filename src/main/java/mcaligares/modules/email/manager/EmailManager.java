@@ -16,10 +16,18 @@
 
 package mcaligares.modules.email.manager;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.entity.PreparedEmail;
+import mcaligares.modules.email.entity.ReceiveResult;
+import mcaligares.modules.email.entity.SendResult;
 import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.listener.FolderWatcher;
+import mcaligares.modules.email.listener.WatchListener;
 
 /**
  * 
@@ -63,8 +71,92 @@ public interface EmailManager {
 
     public void send(final Email email) throws EmailException;
 
+    /**
+     * Validates the email and resolves everything a send needs once: account
+     * settings and session, addresses, headers and the encoded body.
+     */
+    public PreparedEmail prepare(final Email email) throws EmailException;
+
+    /**
+     * Sends a prepared email, safe to call from many threads at once. Only
+     * the message headers are built per send.
+     */
+    public void send(final PreparedEmail email) throws EmailException;
+
+    /**
+     * Sends every email, reusing one connection for the emails that share
+     * smtp server and account. A failed email does not stop the batch.
+     *
+     * @return one result per email, in the same order
+     */
+    public List<SendResult> sendBatch(final Collection<Email> emails) throws EmailException;
+
+    /**
+     * Sends the same email to every recipient, one message each. Body and
+     * attachments are encoded once and shared by every message, only the
+     * headers are built per recipient. The to list of the email is ignored.
+     *
+     * @return one result per recipient, in the same order
+     */
+    public List<SendResult> sendBulk(final Email email, final Collection<String> recipients) throws EmailException;
+
+    /**
+     * Queues the email to be sent by a bounded worker pool.
+     *
+     * @return a future completed with the email once it is sent
+     * @throws EmailException if the worker queue is full
+     */
+    public CompletableFuture<Email> sendAsync(final Email email) throws EmailException;
+
+    /**
+     * Fills {@link Email#getMessages()} with the messages of the folder.
+     * Received attachments are kept in the
+     * {@link mcaligares.modules.email.store.AttachmentStore}, which deletes a
+     * blob only once every reference to it is released: call
+     * {@link mcaligares.modules.email.entity.Message#release()} on each
+     * message once processed. The same holds for every receive below.
+     */
     public void receive(final Email email) throws EmailException;
 
+    /**
+     * Hands every message of the folder to the handler as soon as its page is
+     * fetched, without keeping them in {@link Email#getMessages()}. Release
+     * the messages whose body was read, see {@link #receive(Email)}.
+     */
+    public void receive(final Email email, final MessageHandler handler) throws EmailException;
+
+    /**
+     * Receives every target in parallel, each email naming an account and
+     * folder. Targets of the same account share its pooled connections and
+     * never open more than the pool allows. A failed target does not stop
+     * the others.
+     *
+     * @return one result per email, in the same order
+     */
+    public List<ReceiveResult> receiveAll(final Collection<Email> emails) throws EmailException;
+
+    /**
+     * Receives only the messages that arrived since the previous call for the
+     * same account and folder. The highest UID seen is kept in a local
+     * checkpoint, which is discarded when the folder UIDVALIDITY changes.
+     */
+    public void receiveNew(final Email email) throws EmailException;
+
+    /**
+     * Hands the messages arriving to the folder to the handler, from a
+     * background thread holding its own connection. Uses IMAP IDLE, or
+     * polling when the server does not support it, and reconnects on
+     * failures until the watcher is closed or the handler returns false.
+     */
+    public FolderWatcher watch(final Email email, final MessageHandler handler) throws EmailException;
+
+    /**
+     * Same as {@link #watch(Email, MessageHandler)}, reporting the handler
+     * and connection failures to the listener.
+     */
+    public FolderWatcher watch(final Email email, final MessageHandler handler, final WatchListener listener)
+            throws EmailException;
+
     public void loadProperties(final Properties properties);
 
 }
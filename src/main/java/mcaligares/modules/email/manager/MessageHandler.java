@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.manager;
+
+import mcaligares.modules.email.entity.Message;
+
+/**
+ * Receives the messages of a folder one at a time, as soon as their page is
+ * fetched, see {@link EmailManager#receive(mcaligares.modules.email.entity.Email, MessageHandler)}.
+ *
+ * @author miguel
+ *
+ */
+public interface MessageHandler {
+
+    /**
+     * The body and the attachments of the message are read over the folder
+     * borrowed for this call. Read later, they are fetched by uid through
+     * another pooled connection, so do not read a message of a previous call
+     * from here: the pool may have no other connection to give.
+     *
+     * @return false to stop receiving the rest of the folder
+     */
+    boolean handle(Message message) throws Exception;
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.manager.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.manager.EmailManager;
+import mcaligares.modules.email.utils.EmailUtils;
+
+/**
+ * Bounded worker pool used by {@link EmailManager#sendAsync(Email)}.
+ *
+ * @author miguel
+ *
+ */
+public class AsyncSendExecutor {
+
+    public static enum RejectionPolicy {
+        /** Fails the new send with an EmailException */
+        ABORT,
+        /** Sends on the calling thread */
+        CALLER_RUNS,
+        /** Fails the oldest queued send and queues the new one */
+        DISCARD_OLDEST
+    }
+
+    public static final int DEFAULT_CORE_POOL_SIZE = 2;
+    public static final int DEFAULT_MAX_POOL_SIZE = 8;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final long DEFAULT_KEEP_ALIVE = 60000;
+
+    private final EmailManager emailManager;
+    private final ThreadPoolExecutor executor;
+    private final RejectionPolicy policy;
+
+    private final class AsyncSend implements Runnable {
+        private final Email email;
+        private final CompletableFuture<Email> future = new CompletableFuture<Email>();
+
+        private AsyncSend(Email email) {
+            this.email = email;
+        }
+
+        public void run() {
+            if (future.isDone()) return;
+            try {
+                emailManager.send(email);
+                future.complete(email);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void reject() {
+            future.completeExceptionally(new EmailException("async send queue is full"));
+        }
+    }
+
+    public AsyncSendExecutor(EmailManager emailManager, int corePoolSize, int maxPoolSize, int queueSize,
+            long keepAlive, RejectionPolicy policy) {
+        super();
+        if (emailManager == null) throw new NullPointerException("email manager cannot be null");
+        // Idle core threads time out, which needs a positive keep alive
+        if (keepAlive <= 0) throw new IllegalArgumentException("keepAlive must be greater than zero");
+
+        this.emailManager = emailManager;
+        this.policy = policy != null ? policy : RejectionPolicy.ABORT;
+        this.executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize, keepAlive, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory(), new RejectionHandler());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Creates the executor from the email.async.* settings. Missing or
+     * invalid values fall back to the defaults, so a bad setting never makes
+     * sendAsync fail, and the max pool size is raised to the core size.
+     */
+    public static AsyncSendExecutor create(EmailManager emailManager, Integer corePoolSize, Integer maxPoolSize,
+            Integer queueSize, Integer keepAlive, String policy) {
+        final int core = corePoolSize != null && corePoolSize >= 0 ? corePoolSize : DEFAULT_CORE_POOL_SIZE;
+        final int max = maxPoolSize != null && maxPoolSize >= 1 ? maxPoolSize : DEFAULT_MAX_POOL_SIZE;
+
+        RejectionPolicy rejection = RejectionPolicy.ABORT;
+        if (EmailUtils.isNotBlank(policy)) {
+            try {
+                rejection = RejectionPolicy.valueOf(policy.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {}
+        }
+
+        return new AsyncSendExecutor(emailManager, core, Math.max(core, max),
+                queueSize != null && queueSize >= 1 ? queueSize : DEFAULT_QUEUE_SIZE,
+                keepAlive != null && keepAlive > 0 ? keepAlive : DEFAULT_KEEP_ALIVE,
+                rejection);
+    }
+
+    public CompletableFuture<Email> submit(final Email email) throws EmailException {
+        final AsyncSend task = new AsyncSend(email);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new EmailException("async send queue is full", e);
+        }
+        return task.future;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public RejectionPolicy getPolicy() {
+        return policy;
+    }
+
+    private final class RejectionHandler implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor pool) {
+            if (pool.isShutdown() || policy == RejectionPolicy.ABORT) {
+                throw new RejectedExecutionException("async send queue is full");
+            }
+
+            if (policy == RejectionPolicy.CALLER_RUNS) {
+                runnable.run();
+                return;
+            }
+
+            // DISCARD_OLDEST
+            final Runnable oldest = pool.getQueue().poll();
+            if (oldest instanceof AsyncSend) ((AsyncSend) oldest).reject();
+            pool.execute(runnable);
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "email-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -16,25 +16,82 @@
 
 package mcaligares.modules.email.manager.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.activation.DataHandler;
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.Multipart;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.Transport;
+import javax.mail.UIDFolder;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
+import com.sun.mail.imap.IMAPFolder;
+
+import mcaligares.modules.email.cache.CachedFolder;
+import mcaligares.modules.email.cache.MessageCache;
 import mcaligares.modules.email.entity.Attachment;
 import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.entity.Filter;
+import mcaligares.modules.email.entity.Filter.FilterType;
+import mcaligares.modules.email.entity.FilterPlan;
+import mcaligares.modules.email.entity.PreparedEmail;
+import mcaligares.modules.email.entity.ReceiveResult;
+import mcaligares.modules.email.entity.SendResult;
 import mcaligares.modules.email.exception.EmailException;
 import mcaligares.modules.email.exception.EmailServerNotFoundException;
+import mcaligares.modules.email.exception.InvalidEmailException;
 import mcaligares.modules.email.exception.InvalidUsernameOrPasswordException;
+import mcaligares.modules.email.index.FolderIndex;
+import mcaligares.modules.email.index.TextIndex;
+import mcaligares.modules.email.listener.FolderWatcher;
+import mcaligares.modules.email.listener.WatchListener;
 import mcaligares.modules.email.manager.EmailManager;
+import mcaligares.modules.email.manager.MessageHandler;
+import mcaligares.modules.email.mime.EncodedContent;
+import mcaligares.modules.email.mime.EncodedMimeMessage;
+import mcaligares.modules.email.pool.PoolKey;
+import mcaligares.modules.email.pool.ServicePool.Lease;
+import mcaligares.modules.email.provider.Provider;
+import mcaligares.modules.email.provider.ProviderRegistry;
+import mcaligares.modules.email.pool.StorePool;
+import mcaligares.modules.email.pool.TransportPool;
+import mcaligares.modules.email.session.AccountConfig;
+import mcaligares.modules.email.session.AccountKey;
+import mcaligares.modules.email.store.AttachmentStore;
+import mcaligares.modules.email.sync.Checkpoint;
+import mcaligares.modules.email.sync.CheckpointStore;
+import mcaligares.modules.email.template.TemplateCache;
+import mcaligares.modules.email.throttle.SendThrottle;
+import mcaligares.modules.email.utils.AddressCache;
 import mcaligares.modules.email.utils.EmailUtils;
 import mcaligares.modules.properties.annotation.BeanProperties;
 import mcaligares.modules.properties.annotation.Key;
@@ -49,33 +106,131 @@ import mcaligares.modules.properties.utils.PropertiesBuilder;
 @BeanProperties(prop = "mcaligares/modules/email/config.properties")
 public class EmailManagerImpl implements EmailManager {
 
-    private static @Key("email.domain.gmail") String DOMAIN_GMAIL;
-    private static @Key("email.domain.yahoo") String DOMAIN_YAHOO;
-    private static @Key("email.domain.hotmail") String DOMAIN_HOTMAIL;
-    private static @Key("email.domain.outlook") String DOMAIN_OUTLOOK;
+    private static @Key("email.smtp.timeout") Integer SMTP_TIMEOUT;
+    private static @Key("email.smtp.connectiontimeout") Integer SMTP_CONNECTION_TIMEOUT;
 
-    private static @Key("email.smtp.server.gmail") String SMTP_SERVER_GMAIL;
-    private static @Key("email.smtp.server.yahoo") String SMTP_SERVER_YAHOO;
-    private static @Key("email.smtp.server.hotmail") String SMTP_SERVER_HOTMAIL;
+    private static @Key("email.smtp.pool.maxperkey") Integer SMTP_POOL_MAX_PER_KEY;
+    private static @Key("email.smtp.pool.maxtotal") Integer SMTP_POOL_MAX_TOTAL;
+    private static @Key("email.smtp.pool.idletimeout") Integer SMTP_POOL_IDLE_TIMEOUT;
+    private static @Key("email.smtp.pool.maxwait") Integer SMTP_POOL_MAX_WAIT;
 
-    private static @Key("email.smtp.port.gmail") Integer SMTP_PORT_GMAIL;
-    private static @Key("email.smtp.port.yahoo") Integer SMTP_PORT_YAHOO;
-    private static @Key("email.smtp.port.hotmail") Integer SMTP_PORT_HOTMAIL;
+    private static @Key("email.async.corepoolsize") Integer ASYNC_CORE_POOL_SIZE;
+    private static @Key("email.async.maxpoolsize") Integer ASYNC_MAX_POOL_SIZE;
+    private static @Key("email.async.queuesize") Integer ASYNC_QUEUE_SIZE;
+    private static @Key("email.async.keepalive") Integer ASYNC_KEEP_ALIVE;
+    private static @Key("email.async.rejection") String ASYNC_REJECTION;
 
-    private static @Key("email.imap.server.gmail") String IMAP_SERVER_GMAIL;
-    private static @Key("email.imap.server.yahoo") String IMAP_SERVER_YAHOO;
-    private static @Key("email.imap.server.hotmail") String IMAP_SERVER_HOTMAIL;
+    private static @Key("email.template.cache.size") Integer TEMPLATE_CACHE_SIZE;
 
-    private static @Key("email.smtp.timeout") Integer SMTP_TIMEOUT;
-    private static @Key("email.smtp.connectiontimeout") Integer SMTP_CONNECTION_TIMEOUT;
+    private static @Key("email.address.cache.size") Integer ADDRESS_CACHE_SIZE;
 
     private static @Key("email.imap.timeout") Integer IMAP_TIMEOUT;
     private static @Key("email.imap.connectiontimeout") Integer IMAP_CONNECTION_TIMEOUT;
 
-    private static Properties emailProperties;
+    private static @Key("email.imap.fetch.window") Integer IMAP_FETCH_WINDOW;
+
+    private static @Key("email.imap.sync.dir") String IMAP_SYNC_DIR;
+
+    private static @Key("email.imap.cache.dir") String IMAP_CACHE_DIR;
+    private static @Key("email.imap.cache.maxsize") Integer IMAP_CACHE_MAX_SIZE;
+    private static @Key("email.imap.cache.ttl") Integer IMAP_CACHE_TTL;
+
+    private static @Key("email.imap.index.dir") String IMAP_INDEX_DIR;
+    private static @Key("email.imap.index.maxpending") Integer IMAP_INDEX_MAX_PENDING;
+
+    private static @Key("email.imap.plan.headerlimit") Integer IMAP_PLAN_HEADER_LIMIT;
+    private static @Key("email.imap.plan.bodylimit") Integer IMAP_PLAN_BODY_LIMIT;
+
+    private static @Key("email.imap.receive.threads") Integer IMAP_RECEIVE_THREADS;
+
+    private static @Key("email.imap.watch.idlerenew") Integer IMAP_WATCH_IDLE_RENEW;
+    private static @Key("email.imap.watch.pollmin") Integer IMAP_WATCH_POLL_MIN;
+    private static @Key("email.imap.watch.pollmax") Integer IMAP_WATCH_POLL_MAX;
+    private static @Key("email.imap.watch.reconnectmax") Integer IMAP_WATCH_RECONNECT_MAX;
+
+    private static @Key("email.imap.pool.maxperkey") Integer IMAP_POOL_MAX_PER_KEY;
+    private static @Key("email.imap.pool.maxtotal") Integer IMAP_POOL_MAX_TOTAL;
+    private static @Key("email.imap.pool.idletimeout") Integer IMAP_POOL_IDLE_TIMEOUT;
+    private static @Key("email.imap.pool.maxwait") Integer IMAP_POOL_MAX_WAIT;
+    private static @Key("email.imap.pool.maxfolders") Integer IMAP_POOL_MAX_FOLDERS;
+    private static @Key("email.imap.pool.foldermessages") Integer IMAP_POOL_FOLDER_MESSAGES;
+
+    private static volatile Properties emailProperties;
     private static final String EMAIL_PROPERTIES_FILE = "email.properties";
 
+    private static TransportPool transportPool;
+    private static StorePool storePool;
+    private static TemplateCache templateCache;
+    private static SendThrottle sendThrottle;
+
+    private static final ConcurrentMap<AccountKey, AccountConfig> accounts =
+            new ConcurrentHashMap<AccountKey, AccountConfig>();
+    private static volatile int providersVersion;
+
+    private static final FetchProfile ENVELOPE_PROFILE = new FetchProfile();
+    private static final FetchProfile UID_PROFILE = new FetchProfile();
+    private static final String DEFAULT_SYNC_DIR = ".mcaligares-email/sync";
+
+    private AsyncSendExecutor asyncSendExecutor;
+    private ExecutorService receiveExecutor;
+    private CheckpointStore checkpointStore;
+    private MessageCache messageCache;
+    private boolean messageCacheChecked;
+    private TextIndex textIndex;
+    private boolean textIndexChecked;
+
+    /**
+     * Wraps a failure of a {@link MessageHandler}, not of the connection.
+     */
+    private static final class HandlerException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private HandlerException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Loads a received message after its folder went back to the pool,
+     * borrowing a store of the account again and finding the message by uid.
+     */
+    private static final class StoreLoader implements mcaligares.modules.email.entity.Message.Loader {
+        private final AccountConfig config;
+        private final String name;
+        private final long uidValidity;
+        private final long uid;
+
+        private StoreLoader(AccountConfig config, String name, long uidValidity, long uid) {
+            this.config = config;
+            this.name = name;
+            this.uidValidity = uidValidity;
+            this.uid = uid;
+        }
+
+        public void load(final mcaligares.modules.email.entity.Message message) throws Exception {
+            final PoolKey key = config.getPoolKey();
+            final Store store = storePool.borrow(key, config.getSession());
+            try {
+                final UIDFolder folder = (UIDFolder) storePool.getFolder(store, name);
+
+                // The uid names another message once the folder was reset
+                final Message source = folder.getUIDValidity() == uidValidity ? folder.getMessageByUID(uid) : null;
+                if (source != null) message.read(source);
+
+                storePool.release(key, store);
+                if (source == null) throw new EmailException("message " + uid + " is no longer in " + name);
+            } catch (EmailException e) {
+                throw e;
+            } catch (Exception e) {
+                // Connection state is unknown, do not hand it out again
+                storePool.invalidate(key, store);
+                throw e;
+            }
+        }
+    }
+
     static {
+        UID_PROFILE.add(UIDFolder.FetchProfileItem.UID);
         //load config properties
         PropertiesConfig.build(new EmailManagerImpl());
 
@@ -89,6 +244,41 @@ public class EmailManagerImpl implements EmailManager {
         if (emailProperties == null) {
             emailProperties = new Properties();
         }
+
+        //create smtp connection pool
+        transportPool = new TransportPool(
+                SMTP_POOL_MAX_PER_KEY != null ? SMTP_POOL_MAX_PER_KEY : 2,
+                SMTP_POOL_MAX_TOTAL != null ? SMTP_POOL_MAX_TOTAL : 8,
+                SMTP_POOL_IDLE_TIMEOUT != null ? SMTP_POOL_IDLE_TIMEOUT : 60000,
+                SMTP_POOL_MAX_WAIT != null ? SMTP_POOL_MAX_WAIT : 30000);
+
+        //items prefetched by receive, the uid finds the message again to load its body
+        ENVELOPE_PROFILE.add(UIDFolder.FetchProfileItem.UID);
+        ENVELOPE_PROFILE.add(FetchProfile.Item.ENVELOPE);
+        ENVELOPE_PROFILE.add(FetchProfile.Item.FLAGS);
+        ENVELOPE_PROFILE.add(FetchProfile.Item.CONTENT_INFO);
+        ENVELOPE_PROFILE.add(IMAPFolder.FetchProfileItem.SIZE);
+
+        //create imap connection pool
+        storePool = new StorePool(
+                IMAP_POOL_MAX_PER_KEY != null ? IMAP_POOL_MAX_PER_KEY : 1,
+                IMAP_POOL_MAX_TOTAL != null ? IMAP_POOL_MAX_TOTAL : 8,
+                IMAP_POOL_IDLE_TIMEOUT != null ? IMAP_POOL_IDLE_TIMEOUT : 300000,
+                IMAP_POOL_MAX_WAIT != null ? IMAP_POOL_MAX_WAIT : 30000,
+                IMAP_POOL_MAX_FOLDERS != null ? IMAP_POOL_MAX_FOLDERS : 1,
+                IMAP_POOL_FOLDER_MESSAGES != null ? IMAP_POOL_FOLDER_MESSAGES : 1000);
+
+        //create html template cache
+        templateCache = new TemplateCache(TEMPLATE_CACHE_SIZE != null ? TEMPLATE_CACHE_SIZE : 64);
+
+        //create parsed address cache
+        AddressCache.setDefault(new AddressCache(ADDRESS_CACHE_SIZE != null ? ADDRESS_CACHE_SIZE : 1024));
+
+        //load provider send rates
+        sendThrottle = SendThrottle.getDefault();
+
+        //check the receive settings, invalid values fall back to the defaults
+        if (IMAP_RECEIVE_THREADS != null && IMAP_RECEIVE_THREADS < 1) IMAP_RECEIVE_THREADS = null;
     }
 
     public EmailManagerImpl() {
@@ -97,301 +287,1099 @@ public class EmailManagerImpl implements EmailManager {
 
     public void send(final Email email) throws EmailException {
         // Checking
-        if (email == null)
-            throw new NullPointerException("email object is null");
+        checkSend(email);
 
-        if (EmailUtils.isBlank(email.getUsername()))
-            throw new InvalidUsernameOrPasswordException("username cannot be empty");
+        try {
+            // Get the cached account settings and session
+            final AccountConfig config = getSendConfig(email);
+            final Session session = config.getSession();
+
+            // Destination addresses
+            final InternetAddress[] addresses = email.getToAddresses();
+
+            // Create the message
+            final MimeMessage message = createMessage(session, email, addresses);
+
+            // Wait for the provider send rate
+            throttle(email);
+
+            // Send message over a pooled connection
+            final PoolKey key = config.getPoolKey();
+            final Transport transport = transportPool.borrow(key, session);
+            try {
+                transport.sendMessage(message, addresses);
+                transportPool.release(key, transport);
+            } catch (SendFailedException e) {
+                // Rejected addresses, the connection is still usable
+                transportPool.release(key, transport);
+                throw e;
+            } catch (Exception e) {
+                transportPool.invalidate(key, transport);
+                throw e;
+            }
 
-        if (EmailUtils.isBlank(email.getPassword()))
-            throw new InvalidUsernameOrPasswordException("password cannot be empty");
+        } catch(EmailException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new EmailException(e);
+        }
+    }
 
-        if (!EmailUtils.isValidEmail(email.getFrom()))
-            throw new EmailException("Invalid email " + email.getFrom());
+    public List<SendResult> sendBatch(final Collection<Email> emails) throws EmailException {
+        // Checking
+        if (emails == null)
+            throw new NullPointerException("emails collection is null");
+
+        final List<Email> list = new ArrayList<Email>(emails);
+        final SendResult[] results = new SendResult[list.size()];
+
+        // Group emails by smtp connection, keeping their original order
+        final Map<PoolKey, List<Integer>> groups = new LinkedHashMap<PoolKey, List<Integer>>();
+        for (int i = 0; i < list.size(); i++) {
+            final Email email = list.get(i);
+            try {
+                checkSend(email);
+                final PoolKey key = getSendConfig(email).getPoolKey();
+                List<Integer> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<Integer>();
+                    groups.put(key, group);
+                }
+                group.add(i);
+            } catch (Exception e) {
+                results[i] = new SendResult(email, toEmailException(e));
+            }
+        }
 
-        if (email.getTo() == null || email.getTo().isEmpty())
-            throw new EmailException("Empty destination emails");
+        // Send each group back-to-back over one connection
+        for (Map.Entry<PoolKey, List<Integer>> group : groups.entrySet()) {
+            final Lease<Transport> transport = transportPool.lease(group.getKey());
+
+            try {
+                for (Integer index : group.getValue()) {
+                    final Email email = list.get(index);
+                    try {
+                        final Session session = getSendConfig(email).getSession();
+                        final InternetAddress[] addresses = email.getToAddresses();
+                        final MimeMessage message = createMessage(session, email, addresses);
+
+                        final long wait = throttle(email, transport);
+                        final Transport connection = transport.get(session);
+
+                        try {
+                            connection.sendMessage(message, addresses);
+                            results[index] = new SendResult(email, null, null, wait);
+                        } catch (SendFailedException e) {
+                            // Rejected addresses, the connection is still usable
+                            results[index] = new SendResult(email, null, new EmailException(e), wait);
+                        } catch (Exception e) {
+                            // Connection is broken, next message will borrow a new one
+                            transport.invalidate();
+                            results[index] = new SendResult(email, null, toEmailException(e), wait);
+                        }
+                    } catch (Exception e) {
+                        results[index] = new SendResult(email, toEmailException(e));
+                    }
+                }
+            } finally {
+                transport.release();
+            }
+        }
+
+        return Arrays.asList(results);
+    }
 
-        if (EmailUtils.isBlank(email.getSubject()))
-            throw new EmailException("Subject cannot be empty");
+    public PreparedEmail prepare(final Email email) throws EmailException {
+        // Checking
+        checkSend(email);
 
         try {
-            // Checking send properties
-            checkSendProperties(email);
+            // Get the cached account settings and session
+            final AccountConfig config = getSendConfig(email);
 
-            // Get instance of Session
-            final Session session = Session.getInstance(emailProperties, email.getAuthenticator());
+            // Body and attachments are encoded only once
+            final EncodedContent content = EncodedContent.encode(config.getSession(), createMultipart(email));
 
-            // Create a default MimeMessage object.
-            final MimeMessage message = new MimeMessage(session);
+            return new PreparedEmail(config, getProvider(email.getDomain()).getName(), email.getUsername(),
+                    email.getFromAddress(), email.getToAddresses(), email.getSubject(), content);
 
-            // Create a multipar message
-            final Multipart multipart = new MimeMultipart();
+        } catch(EmailException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new EmailException(e);
+        }
+    }
 
-            // Create a transport
-            final Transport transport = session.getTransport();
+    public void send(final PreparedEmail email) throws EmailException {
+        if (email == null)
+            throw new NullPointerException("prepared email is null");
 
-            // Set Subject: header field
-            message.setSubject(email.getSubject());
+        try {
+            final MimeMessage message = email.createMessage();
+            final InternetAddress[] addresses = email.getTo();
+
+            // Wait for the provider send rate
+            sendThrottle.acquire(email.getProvider(), email.getUsername());
+
+            // Send message over a pooled connection
+            final PoolKey key = email.getConfig().getPoolKey();
+            final Transport transport = transportPool.borrow(key, email.getConfig().getSession());
+            try {
+                transport.sendMessage(message, addresses);
+                transportPool.release(key, transport);
+            } catch (SendFailedException e) {
+                // Rejected addresses, the connection is still usable
+                transportPool.release(key, transport);
+                throw e;
+            } catch (Exception e) {
+                transportPool.invalidate(key, transport);
+                throw e;
+            }
 
-            // Set From: header field of the header.
-            message.setFrom(email.getFromAddress());
+        } catch(EmailException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new EmailException(e);
+        }
+    }
 
-            // Set To: header field of the header.
-            message.addRecipients(Message.RecipientType.TO, email.getToAddresses());
+    public List<SendResult> sendBulk(final Email email, final Collection<String> recipients)
+            throws EmailException {
+        // Checking
+        checkSend(email, false);
 
-            // Create the message part 
-            MimeBodyPart messageBodyPart = new MimeBodyPart();
+        if (recipients == null || recipients.isEmpty())
+            throw new EmailException("Empty destination emails");
 
-            // Fill the message
-            if (email.hasHtmlFile()) {
-                messageBodyPart.setContent(
-                        EmailUtils.readFileAsString(email.getHtmlFile()), HTML_MIME_TYPE);
-            } else {
-                messageBodyPart.setText(email.getBody());
-            }
+        final List<SendResult> results = new ArrayList<SendResult>(recipients.size());
 
-            // Set text message part
-            multipart.addBodyPart(messageBodyPart);
-
-            // Part two is attachment
-            if (email.getAttaches() != null && !email.getAttaches().isEmpty()) {
-                for (Attachment attach : email.getAttaches()) {
-                    messageBodyPart = new MimeBodyPart();
-                    messageBodyPart.setDataHandler(
-                            new DataHandler(ClassLoader.getSystemResource(attach.getPath())));
-                    messageBodyPart.setFileName(attach.getName());
-                    multipart.addBodyPart(messageBodyPart);
+        try {
+            final AccountConfig config = getSendConfig(email);
+            final Session session = config.getSession();
+            // Body, attachments and the shared headers are encoded only once
+            final EncodedContent content = EncodedContent.encode(session, createMultipart(email));
+            final String fromHeader = email.getFromAddress().toString();
+            final String subjectHeader = EncodedMimeMessage.encodeSubject(email.getSubject());
+
+            final Lease<Transport> transport = transportPool.lease(config.getPoolKey());
+            try {
+                for (String recipient : recipients) {
+                    // Rejected before it takes a send permit
+                    if (!EmailUtils.isValidEmail(recipient)) {
+                        results.add(new SendResult(email, recipient,
+                                new InvalidEmailException("Invalid email " + recipient)));
+                        continue;
+                    }
+
+                    try {
+                        final InternetAddress[] to = new InternetAddress[] {
+                                AddressCache.getDefault().get(recipient) };
+
+                        // Only the recipient changes
+                        final MimeMessage message = new EncodedMimeMessage(session, content);
+                        message.setHeader(EncodedMimeMessage.SUBJECT, subjectHeader);
+                        message.setHeader(EncodedMimeMessage.FROM, fromHeader);
+                        message.setRecipients(Message.RecipientType.TO, to);
+                        message.setSentDate(new Date());
+
+                        final long wait = throttle(email, transport);
+                        final Transport connection = transport.get(session);
+
+                        try {
+                            connection.sendMessage(message, to);
+                            results.add(new SendResult(email, recipient, null, wait));
+                        } catch (SendFailedException e) {
+                            // Rejected address, the connection is still usable
+                            results.add(new SendResult(email, recipient, new EmailException(e), wait));
+                        } catch (Exception e) {
+                            // Connection is broken, next recipient will borrow a new one
+                            transport.invalidate();
+                            results.add(new SendResult(email, recipient, toEmailException(e), wait));
+                        }
+                    } catch (Exception e) {
+                        results.add(new SendResult(email, recipient, toEmailException(e)));
+                    }
                 }
+            } finally {
+                transport.release();
             }
 
-            // Send the complete message parts
-            message.setContent(multipart);
-
-            // Send message
-            transport.connect();
-            transport.sendMessage(message, email.getToAddresses());
-            transport.close();
-
         } catch(EmailException e) {
             throw e;
         } catch(Exception e) {
             throw new EmailException(e);
         }
+
+        return results;
+    }
+
+    public CompletableFuture<Email> sendAsync(final Email email) throws EmailException {
+        // Checking before queuing, so invalid emails fail fast
+        checkSend(email);
+
+        return getAsyncSendExecutor().submit(email);
     }
 
     public void receive(final Email email) throws EmailException {
         // Checking
-        if (email == null)
-            throw new NullPointerException("email object cannot be null");
+        checkReceive(email);
 
-        if (EmailUtils.isBlank(email.getUsername()))
-            throw new InvalidUsernameOrPasswordException("username cannot be empty");
+        try {
+            receiveMessages(email);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-        if (EmailUtils.isBlank(email.getPassword()))
-            throw new InvalidUsernameOrPasswordException("password cannot be empty");
+    public List<ReceiveResult> receiveAll(final Collection<Email> emails) throws EmailException {
+        // Checking
+        if (emails == null)
+            throw new NullPointerException("emails collection is null");
+
+        final List<Email> list = new ArrayList<Email>(emails);
+        final ReceiveResult[] results = new ReceiveResult[list.size()];
+
+        // Group targets by imap connection, keeping their original order
+        final Map<PoolKey, List<Integer>> groups = new LinkedHashMap<PoolKey, List<Integer>>();
+        for (int i = 0; i < list.size(); i++) {
+            final Email email = list.get(i);
+            try {
+                checkReceive(email);
+                final PoolKey key = getReceiveConfig(email).getPoolKey();
+                List<Integer> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<Integer>();
+                    groups.put(key, group);
+                }
+                group.add(i);
+            } catch (Exception e) {
+                results[i] = new ReceiveResult(email, toEmailException(e));
+            }
+        }
 
-        if (!EmailUtils.isValidEmail(email.getFrom()))
-            throw new EmailException("Invalid email " + email.getFrom());
+        // One lane per connection the account may open, so no worker waits for the pool
+        final List<List<Integer>> lanes = new ArrayList<List<Integer>>();
+        for (List<Integer> group : groups.values()) {
+            final int count = Math.min(group.size(), storePool.getMaxPerKey());
+            final int first = lanes.size();
+            for (int i = 0; i < count; i++) lanes.add(new ArrayList<Integer>());
+            for (int i = 0; i < group.size(); i++) lanes.get(first + i % count).add(group.get(i));
+        }
 
-        try {
-            // Check receive properties
-            checkReceiveProperties(email);
+        final ExecutorService executor = getReceiveExecutor();
+        final List<Future<?>> futures = new ArrayList<Future<?>>(lanes.size());
+        for (final List<Integer> lane : lanes) {
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    for (Integer index : lane) {
+                        final Email email = list.get(index);
+                        try {
+                            receiveMessages(email);
+                            results[index] = new ReceiveResult(email);
+                        } catch (Exception e) {
+                            results[index] = new ReceiveResult(email, toEmailException(e));
+                        }
+                    }
+                }
+            }));
+        }
 
-            // Get instance of Session
-            final Session session = Session.getInstance(emailProperties, email.getAuthenticator());
+        try {
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new EmailException("interrupted waiting for the receive workers", e);
+        } catch (ExecutionException e) {
+            throw new EmailException(e.getCause());
+        }
 
-            // Create store from session
-            final Store store = session.getStore();
+        return Arrays.asList(results);
+    }
 
-            // Connect store to server
-            store.connect(getImapServer(email.getDomain()), email.getUsername(), email.getPassword());
+    public void receive(final Email email, final MessageHandler handler) throws EmailException {
+        // Checking
+        checkReceive(email);
 
-            // Get folder
-            final Folder folder = store.getFolder(EmailUtils.isNotBlank(email.getFolder())
-                    ? email.getFolder() : DEFAULT_MAIL_FOLDER);
+        if (handler == null)
+            throw new NullPointerException("message handler cannot be null");
 
-            // Open folder
-            folder.open(Folder.READ_ONLY);
+        try {
+            // Get the cached account settings and session
+            final AccountConfig config = getReceiveConfig(email);
+            final Session session = config.getSession();
+
+            final MessageCache cache = getMessageCache();
+            if (cache != null) {
+                receiveCached(email, config, cache, handler);
+                return;
+            }
 
-            // Get messages from folder
-            final Message[] messages = email.getFilter() != null
-                    ? folder.search(email.getFilter().getSearchTerm()) : folder.getMessages();
+            // Borrow a logged in store, small folders stay open between receives
+            final PoolKey key = config.getPoolKey();
+            final Store store = storePool.borrow(key, session);
+            try {
+                // Get the opened folder
+                final String name = getFolderName(email);
+                final Folder folder = storePool.getFolder(store, name);
+
+                // Get messages from folder
+                final Message[] messages = search(email, folder, key, name);
+
+                if (messages != null) handleMessages(config, name, folder, messages, handler);
+
+                storePool.release(key, store);
+            } catch (HandlerException e) {
+                // The handler failed, the connection is fine
+                storePool.release(key, store);
+                throw new EmailException(e.getCause());
+            } catch (Exception e) {
+                // Connection state is unknown, do not hand it out again
+                storePool.invalidate(key, store);
+                throw e;
+            }
 
-            if (messages != null) {
-                // Reset messages list if exist
-                if (email.getMessages() != null) email.getMessages().clear();
+        } catch(EmailException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new EmailException(e);
+        }
+    }
 
-                for (int i = 0; i < messages.length; i++) {
-                    Message message = messages[i];
-                    email.addMessage(new mcaligares.modules.email.entity.Message(message));
+    /**
+     * Receive through the message cache: the matching UIDs and the parsed
+     * messages are taken from disk when the folder did not change, only the
+     * missing ones are fetched. Within the cache ttl the folder is not even
+     * opened, but a store is always borrowed: the cache is keyed without the
+     * password, so the login is what proves the credentials.
+     */
+    private void receiveCached(final Email email, final AccountConfig config, final MessageCache cache,
+            final MessageHandler handler) throws Exception {
+        final String name = getFolderName(email);
+        final String filterKey = email.getFilter() != null ? email.getFilter().getKey() : "";
+        final PoolKey key = config.getPoolKey();
+        final CachedFolder cached = cache.getFolder(key.toString(), name);
+
+        synchronized (cached) {
+            // Pooled stores are shared only with the same password
+            final Store store = storePool.borrow(key, config.getSession());
+            try {
+                long[] uids = cache.isFresh(cached) ? cached.getResult(filterKey) : null;
+                UIDFolder folder = null;
+
+                if (uids == null) {
+                    folder = (UIDFolder) storePool.getFolder(store, name);
+                    uids = searchCached(email, (Folder) folder, key, name, cached, filterKey);
                 }
-            }
 
-            // Close folder
-            folder.close(false);
+                final int window = IMAP_FETCH_WINDOW != null && IMAP_FETCH_WINDOW > 0 ? IMAP_FETCH_WINDOW : 500;
+                pages: for (int start = 0; start < uids.length; start += window) {
+                    final long[] page = Arrays.copyOfRange(uids, start, Math.min(start + window, uids.length));
+                    final mcaligares.modules.email.entity.Message[] received =
+                            new mcaligares.modules.email.entity.Message[page.length];
+
+                    // A file read for every cached message
+                    final List<Long> missing = new ArrayList<Long>();
+                    for (int i = 0; i < page.length; i++) {
+                        received[i] = cached.get(page[i]);
+                        if (received[i] == null) missing.add(page[i]);
+                    }
+
+                    // One FETCH for the rest, they are cached once parsed
+                    if (!missing.isEmpty()) {
+                        if (folder == null) folder = (UIDFolder) storePool.getFolder(store, name);
+                        fetchCached(folder, cached, missing, page, received);
+                    }
+
+                    for (mcaligares.modules.email.entity.Message message : received) {
+                        if (message == null) continue;
+                        try {
+                            if (!handler.handle(message)) break pages;
+                        } catch (Exception e) {
+                            throw new HandlerException(e);
+                        }
+                    }
+                }
 
-            // Close store
-            store.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+                cached.save();
+                storePool.release(key, store);
+            } catch (HandlerException e) {
+                // The handler failed, the connection is fine
+                cached.save();
+                storePool.release(key, store);
+                throw new EmailException(e.getCause());
+            } catch (Exception e) {
+                // Connection state is unknown, do not hand it out again
+                storePool.invalidate(key, store);
+                throw e;
+            }
         }
     }
 
-    public void loadProperties(final Properties properties) {
-        if (properties != null) emailProperties = properties;
-    }
-
-    private String getImapServer(final String domain) throws EmailException {
-        if (EmailUtils.isNotBlank(domain)) {
-            if (domain.toUpperCase().contains(DOMAIN_GMAIL.toUpperCase())) {
-                return IMAP_SERVER_GMAIL;
-            } else if (domain.toUpperCase().contains(DOMAIN_YAHOO.toUpperCase())) {
-                return IMAP_SERVER_YAHOO;
-            } else if (domain.toUpperCase().contains(DOMAIN_HOTMAIL.toUpperCase())
-                    || domain.toUpperCase().contains(DOMAIN_OUTLOOK.toUpperCase())) {
-                return IMAP_SERVER_HOTMAIL;
+    /**
+     * Validates the cached folder and returns the UIDs matching the filter,
+     * searching only when they are not cached.
+     */
+    private long[] searchCached(final Email email, final Folder folder, final PoolKey key, final String name,
+            final CachedFolder cached, final String filterKey) throws Exception {
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        final int count = folder.getMessageCount();
+
+        // UIDNEXT of an open folder is the one read on SELECT, the last uid is current
+        long lastUid = 0;
+        if (count > 0) {
+            final Message[] last = new Message[] { folder.getMessage(count) };
+            folder.fetch(last, UID_PROFILE);
+            lastUid = uidFolder.getUID(last[0]);
+        }
+        cached.validate(uidFolder.getUIDValidity(), count, lastUid);
+
+        long[] uids = cached.getResult(filterKey);
+        if (uids == null) {
+            final Message[] messages = search(email, folder, key, name);
+
+            uids = new long[messages != null ? messages.length : 0];
+            if (uids.length > 0) {
+                folder.fetch(messages, UID_PROFILE);
+                for (int i = 0; i < uids.length; i++) uids[i] = uidFolder.getUID(messages[i]);
             }
+            cached.putResult(filterKey, uids);
         }
-        throw new EmailServerNotFoundException("not smtp server found");
+        return uids;
     }
 
-    private String getSmtpServer(final String domain) throws EmailException {
-        if (EmailUtils.isNotBlank(domain)) {
-            if (domain.toUpperCase().contains(DOMAIN_GMAIL.toUpperCase())) {
-                return SMTP_SERVER_GMAIL;
-            } else if (domain.toUpperCase().contains(DOMAIN_YAHOO.toUpperCase())) {
-                return SMTP_SERVER_YAHOO;
-            } else if (domain.toUpperCase().contains(DOMAIN_HOTMAIL.toUpperCase())
-                    || domain.toUpperCase().contains(DOMAIN_OUTLOOK.toUpperCase())) {
-                return SMTP_SERVER_HOTMAIL;
+    /**
+     * Fetches and parses the messages not found in the cache and adds them to it.
+     * The cache keeps whole messages, so their bodies and attachments are
+     * loaded here even if the handler never reads them: a miss costs the full
+     * download once, later receives read it from disk.
+     */
+    private void fetchCached(final UIDFolder folder, final CachedFolder cached, final List<Long> missing,
+            final long[] page, final mcaligares.modules.email.entity.Message[] received) throws Exception {
+        final long[] uids = new long[missing.size()];
+        for (int i = 0; i < uids.length; i++) uids[i] = missing.get(i);
+
+        final Message[] messages = folder.getMessagesByUID(uids);
+        ((Folder) folder).fetch(messages, ENVELOPE_PROFILE);
+
+        for (int i = 0; i < messages.length; i++) {
+            // Expunged since the search
+            if (messages[i] == null) continue;
+
+            final mcaligares.modules.email.entity.Message message =
+                    new mcaligares.modules.email.entity.Message(messages[i]);
+            message.load();
+            if (!message.hasError()) cached.put(uids[i], message);
+
+            for (int j = 0; j < page.length; j++) {
+                if (page[j] == uids[i]) received[j] = message;
             }
         }
-        throw new EmailServerNotFoundException("not smtp server found");
     }
 
-    private Integer getSmtpPort(final String domain) throws EmailException {
-        if (EmailUtils.isNotBlank(domain)) {
-            if (domain.toUpperCase().contains(DOMAIN_GMAIL.toUpperCase())) {
-                return SMTP_PORT_GMAIL;
-            } else if (domain.toUpperCase().contains(DOMAIN_YAHOO.toUpperCase())) {
-                return SMTP_PORT_YAHOO;
-            } else if (domain.toUpperCase().contains(DOMAIN_HOTMAIL.toUpperCase())
-                    || domain.toUpperCase().contains(DOMAIN_OUTLOOK.toUpperCase())) {
-                return SMTP_PORT_HOTMAIL;
-            }
+    /**
+     * Messages matching the filter of the email. SUBJECT and BODY filters are
+     * answered with the text index when it is enabled, any other goes through
+     * its {@link FilterPlan}.
+     */
+    private Message[] search(final Email email, final Folder folder, final PoolKey key, final String name)
+            throws Exception {
+        final Filter filter = email.getFilter();
+        if (filter == null) return folder.getMessages();
+
+        final TextIndex index = getTextIndex();
+        if (index != null && (filter.getType() == FilterType.SUBJECT || filter.getType() == FilterType.BODY)
+                && EmailUtils.isNotBlank(filter.getTerm())) {
+            final Message[] found = searchIndexed(index.getFolder(key.toString(), name), folder, filter);
+            if (found != null) return found;
         }
-        throw new EmailServerNotFoundException("not smtp port found");
+
+        return filter.getPlan().search(folder, ENVELOPE_PROFILE,
+                IMAP_PLAN_HEADER_LIMIT != null ? IMAP_PLAN_HEADER_LIMIT : FilterPlan.DEFAULT_HEADER_LIMIT,
+                IMAP_PLAN_BODY_LIMIT != null ? IMAP_PLAN_BODY_LIMIT : FilterPlan.DEFAULT_BODY_LIMIT);
     }
 
-    private Properties checkSendProperties(final Email email) throws EmailException {
+    /**
+     * Resolves a text filter with the index. Only the messages above the
+     * indexed position are fetched, read and indexed, then the candidates
+     * are read and checked against the filter. Returns null when the server
+     * has to search: the term has no words, too many messages are not
+     * indexed yet, the oldest of which are indexed meanwhile, or there are
+     * more candidates than the plan would check locally.
+     * <p>
+     * The index is only filled here, by the searches themselves. Every
+     * message indexed is downloaded whole within the search, so the first
+     * text searches on a large folder each read up to
+     * email.imap.index.maxpending bodies before the server search runs.
+     */
+    private Message[] searchIndexed(final FolderIndex index, final Folder folder, final Filter filter)
+            throws Exception {
+        if (TextIndex.getWords(filter.getTerm()).isEmpty()) return null;
+
+        // Network I/O runs outside the index lock, its own methods are synchronized
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        index.validate(uidFolder.getUIDValidity());
+
+        // n:* always matches the last message, even when its uid is lower than n
+        final long through = index.getIndexedThrough();
+        final List<Message> pending = new ArrayList<Message>();
+        for (Message message : uidFolder.getMessagesByUID(through + 1, UIDFolder.LASTUID)) {
+            if (message != null && uidFolder.getUID(message) > through) pending.add(message);
+        }
 
-        if (!email.getDebugStr().equalsIgnoreCase(emailProperties.getProperty(MAIL_DEBUG))) {
-            emailProperties.setProperty(MAIL_DEBUG, email.getDebugStr());
+        final int maxPending = IMAP_INDEX_MAX_PENDING != null ? IMAP_INDEX_MAX_PENDING : 2000;
+        if (maxPending >= 0 && pending.size() > maxPending) {
+            // Oldest first so the indexed position moves, later searches find them indexed
+            indexPending(index, uidFolder, pending.subList(0, maxPending), null, null);
+            index.save();
+            return null;
         }
 
-        if (!MAIL_TRANSPORT_PROTOCOL_SMTP.equalsIgnoreCase(emailProperties.getProperty(MAIL_TRANSPORT_PROTOCOL))) {
-            emailProperties.setProperty(MAIL_TRANSPORT_PROTOCOL, MAIL_TRANSPORT_PROTOCOL_SMTP);
+        final List<Message> found = new ArrayList<Message>();
+        final Set<Long> candidates = index.getCandidates(filter.getType(), filter.getTerm());
+        final int limit = filter.getType() == FilterType.SUBJECT
+                ? (IMAP_PLAN_HEADER_LIMIT != null ? IMAP_PLAN_HEADER_LIMIT : FilterPlan.DEFAULT_HEADER_LIMIT)
+                : (IMAP_PLAN_BODY_LIMIT != null ? IMAP_PLAN_BODY_LIMIT : FilterPlan.DEFAULT_BODY_LIMIT);
+        if (candidates.size() > limit) {
+            // Too many to read, keep what is new indexed and let the server search
+            indexPending(index, uidFolder, pending, null, null);
+            index.save();
+            return null;
         }
 
-        if (!email.getUsername().equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_USER))) {
-            emailProperties.setProperty(MAIL_SMTP_USER, email.getUsername());
+        if (!candidates.isEmpty()) {
+            final long[] uids = new long[candidates.size()];
+            int next = 0;
+            for (Long uid : candidates) uids[next++] = uid;
+            Arrays.sort(uids);
+
+            final Message[] messages = uidFolder.getMessagesByUID(uids);
+            final List<Message> read = new ArrayList<Message>(messages.length);
+            final List<Long> expunged = new ArrayList<Long>();
+            for (int i = 0; i < messages.length; i++) {
+                if (messages[i] != null) {
+                    read.add(messages[i]);
+                } else {
+                    expunged.add(uids[i]);
+                }
+            }
+            index.remove(expunged);
+            indexMessages(index, uidFolder, read, filter, found);
         }
 
-        if (!getSmtpServer(email.getDomain()).equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_HOST))) {
-            emailProperties.setProperty(MAIL_SMTP_HOST, getSmtpServer(email.getDomain()));
+        // Above every candidate uid, so the result stays in folder order
+        indexPending(index, uidFolder, pending, filter, found);
+        index.save();
+        return found.toArray(new Message[found.size()]);
+    }
+
+    /**
+     * Indexes messages in uid order and moves the indexed position past them.
+     */
+    private void indexPending(final FolderIndex index, final UIDFolder uidFolder, final List<Message> pending,
+            final Filter filter, final List<Message> found) throws Exception {
+        if (pending.isEmpty()) return;
+
+        indexMessages(index, uidFolder, pending, filter, found);
+        index.setIndexedThrough(uidFolder.getUID(pending.get(pending.size() - 1)));
+    }
+
+    private void indexMessages(final FolderIndex index, final UIDFolder uidFolder, final List<Message> messages,
+            final Filter filter, final List<Message> found) throws Exception {
+        final int window = IMAP_FETCH_WINDOW != null && IMAP_FETCH_WINDOW > 0 ? IMAP_FETCH_WINDOW : 500;
+        for (int start = 0; start < messages.size(); start += window) {
+            final List<Message> page = messages.subList(start, Math.min(start + window, messages.size()));
+            ((Folder) uidFolder).fetch(page.toArray(new Message[page.size()]), ENVELOPE_PROFILE);
+
+            for (Message message : page) {
+                final long uid = uidFolder.getUID(message);
+                final String subject = message.getSubject();
+                List<String> texts = null;
+
+                if (!index.isIndexed(uid)) {
+                    texts = TextIndex.getTexts(message);
+                    index.add(uid, subject, texts);
+                }
+                if (filter == null) continue;
+
+                if (filter.getType() == FilterType.SUBJECT) {
+                    if (TextIndex.contains(subject, filter.getTerm())) found.add(message);
+                } else {
+                    if (texts == null) texts = TextIndex.getTexts(message);
+                    for (String text : texts) {
+                        if (TextIndex.contains(text, filter.getTerm())) {
+                            found.add(message);
+                            break;
+                        }
+                    }
+                }
+            }
         }
+    }
+
+    public void receiveNew(final Email email) throws EmailException {
+        // Checking
+        checkReceive(email);
+
+        try {
+            // Get the cached account settings and session
+            final AccountConfig config = getReceiveConfig(email);
+            final Session session = config.getSession();
+            final CheckpointStore checkpoints = getCheckpointStore();
+
+            final String account = config.getPoolKey().toString();
+            final String name = getFolderName(email);
+            final Checkpoint checkpoint = checkpoints.get(account, name);
+
+            final long uidValidity;
+            long highest;
+
+            final PoolKey key = config.getPoolKey();
+            final Store store = storePool.borrow(key, session);
+            try {
+                final Folder folder = storePool.getFolder(store, name);
+                final UIDFolder uidFolder = (UIDFolder) folder;
+
+                // A new UIDVALIDITY means the uids were reassigned, sync from scratch
+                uidValidity = uidFolder.getUIDValidity();
+                final long lastUid = checkpoint != null ? checkpoint.getLastUid(uidValidity) : 0;
+
+                // n:* always matches the last message, even when its uid is lower than n
+                final List<Message> found = new ArrayList<Message>();
+                highest = lastUid;
+                for (Message message : uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID)) {
+                    if (message == null) continue;
+
+                    final long uid = uidFolder.getUID(message);
+                    if (uid > lastUid) {
+                        found.add(message);
+                        if (uid > highest) highest = uid;
+                    }
+                }
+
+                // Filter only the new messages
+                Message[] messages = found.toArray(new Message[found.size()]);
+                final Filter filter = email.getFilter();
+                if (filter != null && messages.length > 0) {
+                    // RANGE and LATEST are resolved against the count once, not per message
+                    messages = folder.search(filter.hasWindowTerm()
+                            ? filter.getSearchTerm(folder.getMessageCount()) : filter.getSearchTerm(), messages);
+                }
+
+                addMessages(email, config, name, folder, messages);
+
+                storePool.release(key, store);
+            } catch (Exception e) {
+                // Connection state is unknown, do not hand it out again
+                storePool.invalidate(key, store);
+                throw e;
+            }
+
+            // Messages skipped by the filter are also seen, a concurrent call may already be further
+            checkpoints.putIfNewer(account, name, new Checkpoint(uidValidity, highest));
 
-        if (!getSmtpPort(email.getDomain()).toString().equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_PORT))) {
-            emailProperties.setProperty(MAIL_SMTP_PORT, getSmtpPort(email.getDomain()).toString());
+        } catch(EmailException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new EmailException(e);
         }
+    }
+
+    public FolderWatcher watch(final Email email, final MessageHandler handler) throws EmailException {
+        return watch(email, handler, null);
+    }
 
-        if (!email.getFrom().equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_FROM))) {
-            emailProperties.setProperty(MAIL_SMTP_FROM, email.getFrom());
+    public FolderWatcher watch(final Email email, final MessageHandler handler, final WatchListener listener)
+            throws EmailException {
+        // Checking
+        checkReceive(email);
+
+        if (handler == null)
+            throw new NullPointerException("message handler cannot be null");
+
+        final AccountConfig config = getReceiveConfig(email);
+
+        final FolderWatcher watcher = new FolderWatcher(config, getFolderName(email),
+                email.getFilter() != null ? email.getFilter().getSearchTerm() : null, handler);
+        if (IMAP_WATCH_IDLE_RENEW != null) watcher.setIdleRenew(IMAP_WATCH_IDLE_RENEW);
+        watcher.setPollInterval(IMAP_WATCH_POLL_MIN != null ? IMAP_WATCH_POLL_MIN : 5000,
+                IMAP_WATCH_POLL_MAX != null ? IMAP_WATCH_POLL_MAX : 300000);
+        if (IMAP_WATCH_RECONNECT_MAX != null) watcher.setMaxReconnectDelay(IMAP_WATCH_RECONNECT_MAX);
+        watcher.setListener(listener);
+
+        watcher.start();
+        return watcher;
+    }
+
+    public void loadProperties(final Properties properties) {
+        if (properties != null) {
+            final Properties copy = new Properties();
+            copy.putAll(properties);
+            emailProperties = copy;
+
+            // Sessions were built from the previous properties
+            accounts.clear();
         }
+    }
+
+    /**
+     * Provider send rates, also holds the time spent waiting for them.
+     */
+    public SendThrottle getSendThrottle() {
+        return sendThrottle;
+    }
 
-        if (!Boolean.TRUE.toString().equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_AUTH))) {
-            emailProperties.setProperty(MAIL_SMTP_AUTH, Boolean.TRUE.toString());
+    /**
+     * Sync positions used by {@link #receiveNew(Email)}, by default kept in
+     * the email.imap.sync.dir directory.
+     */
+    public synchronized CheckpointStore getCheckpointStore() throws EmailException {
+        if (checkpointStore == null) {
+            final File directory = EmailUtils.isNotBlank(IMAP_SYNC_DIR) ? new File(IMAP_SYNC_DIR.trim())
+                    : new File(System.getProperty("user.home"), DEFAULT_SYNC_DIR);
+            try {
+                checkpointStore = new CheckpointStore(directory);
+            } catch (IOException e) {
+                throw new EmailException(e);
+            }
         }
+        return checkpointStore;
+    }
 
-        if (!Boolean.TRUE.toString().equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_SENDPARTIAL))) {
-            emailProperties.setProperty(MAIL_SMTP_SENDPARTIAL, Boolean.TRUE.toString());
+    public synchronized void setCheckpointStore(final CheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * Cache used by the receives, null unless email.imap.cache.dir is set.
+     */
+    public synchronized MessageCache getMessageCache() throws EmailException {
+        if (!messageCacheChecked) {
+            messageCacheChecked = true;
+            if (EmailUtils.isNotBlank(IMAP_CACHE_DIR)) {
+                final long maxSize = (IMAP_CACHE_MAX_SIZE != null ? IMAP_CACHE_MAX_SIZE : 64) * 1024L * 1024L;
+                try {
+                    messageCache = new MessageCache(new File(IMAP_CACHE_DIR.trim()), AttachmentStore.getDefault(),
+                            maxSize, IMAP_CACHE_TTL != null ? IMAP_CACHE_TTL : 0);
+                } catch (IOException e) {
+                    throw new EmailException(e);
+                }
+            }
         }
+        return messageCache;
+    }
 
-        if (!Boolean.TRUE.toString().equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_STARTTLS_ENABLE))) {
-            emailProperties.setProperty(MAIL_SMTP_STARTTLS_ENABLE, Boolean.TRUE.toString());
+    public synchronized void setMessageCache(final MessageCache messageCache) {
+        this.messageCache = messageCache;
+        this.messageCacheChecked = true;
+    }
+
+    /**
+     * Index answering SUBJECT and BODY filters, null unless email.imap.index.dir is set.
+     * It is filled by the text searches, a search downloads the bodies of up
+     * to email.imap.index.maxpending messages not indexed yet.
+     */
+    public synchronized TextIndex getTextIndex() throws EmailException {
+        if (!textIndexChecked) {
+            textIndexChecked = true;
+            if (EmailUtils.isNotBlank(IMAP_INDEX_DIR)) {
+                try {
+                    textIndex = new TextIndex(new File(IMAP_INDEX_DIR.trim()));
+                } catch (IOException e) {
+                    throw new EmailException(e);
+                }
+            }
         }
+        return textIndex;
+    }
+
+    public synchronized void setTextIndex(final TextIndex textIndex) {
+        this.textIndex = textIndex;
+        this.textIndexChecked = true;
+    }
 
-        if (!Boolean.TRUE.toString().equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_STARTTLS_REQUIRED))) {
-            emailProperties.setProperty(MAIL_SMTP_STARTTLS_REQUIRED, Boolean.TRUE.toString());
+    private synchronized ExecutorService getReceiveExecutor() {
+        if (receiveExecutor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            final int threads = IMAP_RECEIVE_THREADS != null ? IMAP_RECEIVE_THREADS : 8;
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60000,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "email-receive-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            receiveExecutor = executor;
         }
+        return receiveExecutor;
+    }
 
-        if (SMTP_TIMEOUT != null && !SMTP_TIMEOUT.toString()
-                .equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_TIMEOUT))) {
-            emailProperties.setProperty(MAIL_SMTP_TIMEOUT, SMTP_TIMEOUT.toString());
+    private synchronized AsyncSendExecutor getAsyncSendExecutor() {
+        if (asyncSendExecutor == null) {
+            // Invalid settings fall back to the defaults
+            asyncSendExecutor = AsyncSendExecutor.create(this, ASYNC_CORE_POOL_SIZE, ASYNC_MAX_POOL_SIZE,
+                    ASYNC_QUEUE_SIZE, ASYNC_KEEP_ALIVE, ASYNC_REJECTION);
         }
+        return asyncSendExecutor;
+    }
+
+    private void checkSend(final Email email) throws EmailException {
+        checkSend(email, true);
+    }
+
+    private void checkSend(final Email email, final boolean checkTo) throws EmailException {
+        EmailUtils.checkSend(email, checkTo);
+    }
+
+    private void checkReceive(final Email email) throws EmailException {
+        if (email == null)
+            throw new NullPointerException("email object cannot be null");
+
+        if (EmailUtils.isBlank(email.getUsername()))
+            throw new InvalidUsernameOrPasswordException("username cannot be empty");
+
+        if (EmailUtils.isBlank(email.getPassword()))
+            throw new InvalidUsernameOrPasswordException("password cannot be empty");
+
+        if (!EmailUtils.isValidEmail(email.getFrom()))
+            throw new EmailException("Invalid email " + email.getFrom());
+    }
+
+    private void receiveMessages(final Email email) throws EmailException {
+        // Reset messages list if exist
+        if (email.getMessages() != null) email.getMessages().clear();
+
+        receive(email, new MessageHandler() {
+            public boolean handle(mcaligares.modules.email.entity.Message message) {
+                // Loaded when first read, through a pooled store
+                email.addMessage(message);
+                return true;
+            }
+        });
+    }
+
+    private static String getFolderName(final Email email) {
+        return EmailUtils.isNotBlank(email.getFolder()) ? email.getFolder() : DEFAULT_MAIL_FOLDER;
+    }
+
+    private void addMessages(final Email email, final AccountConfig config, final String name, final Folder folder,
+            final Message[] messages) throws Exception {
+        // Reset messages list if exist
+        if (email.getMessages() != null) email.getMessages().clear();
 
-        if (SMTP_CONNECTION_TIMEOUT != null && !SMTP_CONNECTION_TIMEOUT.toString()
-                .equalsIgnoreCase(emailProperties.getProperty(MAIL_SMTP_CONNECTIONTIMEOUT))) {
-            emailProperties.setProperty(MAIL_SMTP_CONNECTIONTIMEOUT, SMTP_CONNECTION_TIMEOUT.toString());
+        handleMessages(config, name, folder, messages, new MessageHandler() {
+            public boolean handle(mcaligares.modules.email.entity.Message message) {
+                // Loaded when first read, through a pooled store
+                email.addMessage(message);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Fetches one window at a time and hands its messages over before the
+     * next FETCH. The folder keeps the envelopes fetched until it is closed,
+     * when the store is released unless it holds at most
+     * email.imap.pool.foldermessages messages, so memory grows with the
+     * messages handled by one receive or with the size of a folder kept open.
+     * Each message is detached once handled, the caller still holds the
+     * folder until then; a body read later is fetched by uid through another
+     * pooled store.
+     */
+    private void handleMessages(final AccountConfig config, final String name, final Folder folder,
+            final Message[] messages, final MessageHandler handler) throws Exception {
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        final long uidValidity = uidFolder.getUIDValidity();
+        final int window = IMAP_FETCH_WINDOW != null && IMAP_FETCH_WINDOW > 0 ? IMAP_FETCH_WINDOW : 500;
+        for (int start = 0; start < messages.length; start += window) {
+            final Message[] page = Arrays.copyOfRange(messages, start, Math.min(start + window, messages.length));
+
+            // One FETCH for the whole window instead of one per message
+            folder.fetch(page, ENVELOPE_PROFILE);
+
+            for (Message message : page) {
+                final mcaligares.modules.email.entity.Message received =
+                        new mcaligares.modules.email.entity.Message(message);
+                try {
+                    if (!handler.handle(received)) return;
+                } catch (Exception e) {
+                    throw new HandlerException(e);
+                } finally {
+                    received.detach(new StoreLoader(config, name, uidValidity, uidFolder.getUID(message)));
+                }
+            }
         }
+    }
+
+    private MimeMessage createMessage(final Session session, final Email email,
+            final InternetAddress[] addresses) throws Exception {
+        // Create a default MimeMessage object.
+        final MimeMessage message = new MimeMessage(session);
 
-        return emailProperties;
+        // Set Subject: header field
+        message.setSubject(email.getSubject());
+
+        // Set From: header field of the header.
+        message.setFrom(email.getFromAddress());
+
+        // Set To: header field of the header.
+        message.addRecipients(Message.RecipientType.TO, addresses);
+
+        // Send the complete message parts
+        message.setContent(createMultipart(email));
+
+        return message;
     }
 
-    private Properties checkReceiveProperties(final Email email) throws EmailException {
+    private Multipart createMultipart(final Email email) throws Exception {
+        // Create a multipar message
+        final Multipart multipart = new MimeMultipart();
 
-        if (!email.getDebugStr().equalsIgnoreCase(emailProperties.getProperty(MAIL_DEBUG))) {
-            emailProperties.setProperty(MAIL_DEBUG, email.getDebugStr());
+        // Create the message part 
+        MimeBodyPart messageBodyPart = new MimeBodyPart();
+
+        // Fill the message
+        if (email.hasHtmlFile()) {
+            messageBodyPart.setContent(
+                    templateCache.render(email.getHtmlFile(), email.getTemplateValues()), HTML_MIME_TYPE);
+        } else {
+            messageBodyPart.setText(email.getBody());
         }
 
-        if(!MAIL_STORE_PROTOCOL_IMAPS.equalsIgnoreCase(emailProperties.getProperty(MAIL_STORE_PROTOCOL))) {
-            emailProperties.setProperty(MAIL_STORE_PROTOCOL, MAIL_STORE_PROTOCOL_IMAPS);
+        // Set text message part
+        multipart.addBodyPart(messageBodyPart);
+
+        // Part two is attachment
+        if (email.getAttaches() != null && !email.getAttaches().isEmpty()) {
+            for (Attachment attach : email.getAttaches()) {
+                messageBodyPart = new MimeBodyPart();
+                messageBodyPart.setDataHandler(new DataHandler(attach.getDataSource()));
+                messageBodyPart.setFileName(attach.getName());
+                if (EmailUtils.isNotBlank(attach.getDescription()))
+                    messageBodyPart.setDescription(attach.getDescription());
+                if (EmailUtils.isNotBlank(attach.getDisposition()))
+                    messageBodyPart.setDisposition(attach.getDisposition());
+                multipart.addBodyPart(messageBodyPart);
+            }
         }
 
-        if (!email.getUsername().equalsIgnoreCase(emailProperties.getProperty(MAIL_IMAP_USER))) {
-            emailProperties.setProperty(MAIL_IMAP_USER, email.getUsername());
+        return multipart;
+    }
+
+    private long throttle(final Email email) throws EmailException {
+        return sendThrottle.acquire(getProvider(email.getDomain()).getName(), email.getUsername());
+    }
+
+    /**
+     * Takes a send permit for a loop holding a transport, which goes back to
+     * the pool while the permit is waited for.
+     */
+    private long throttle(final Email email, final Lease<Transport> transport) throws EmailException {
+        return sendThrottle.acquire(getProvider(email.getDomain()).getName(), email.getUsername(), transport);
+    }
+
+    private static EmailException toEmailException(final Exception e) {
+        return e instanceof EmailException ? (EmailException) e : new EmailException(e);
+    }
+
+    private Provider getProvider(final String domain) throws EmailException {
+        final ProviderRegistry registry = ProviderRegistry.getDefault();
+
+        // Domains may have been moved to another provider
+        if (registry.getVersion() != providersVersion) {
+            providersVersion = registry.getVersion();
+            accounts.clear();
         }
+        return registry.resolve(domain);
+    }
+
+    private AccountConfig getSendConfig(final Email email) throws EmailException {
+        final AccountKey key = new AccountKey(MAIL_TRANSPORT_PROTOCOL_SMTP, email);
+
+        final Provider provider = getProvider(email.getDomain());
+
+        AccountConfig config = accounts.get(key);
+        if (config == null) {
+            final String host = provider.getSmtpServer();
+            final Integer port = provider.getSmtpPort();
+            if (host == null) throw new EmailServerNotFoundException("not smtp server found");
+            if (port == null) throw new EmailServerNotFoundException("not smtp port found");
 
-        if (!getImapServer(email.getDomain()).equalsIgnoreCase(emailProperties.getProperty(MAIL_IMAP_HOST))) {
-            emailProperties.setProperty(MAIL_IMAP_HOST, getImapServer(email.getDomain()));
+            config = new AccountConfig(key, host, port, createSendProperties(key, host, port));
+
+            final AccountConfig previous = accounts.putIfAbsent(key, config);
+            if (previous != null) config = previous;
         }
+        return config;
+    }
+
+    private AccountConfig getReceiveConfig(final Email email) throws EmailException {
+        final AccountKey key = new AccountKey(MAIL_STORE_PROTOCOL_IMAPS, email);
 
-        //if (!getImapPort(email.getDomain()).toString().equalsIgnoreCase(EMAIL_PROPERTIES.getProperty(MAIL_IMAP_PORT))) {
-        //    EMAIL_PROPERTIES.setProperty(MAIL_IMAP_PORT, getSmtpPort(email.getDomain()).toString());
-        //}
+        final Provider provider = getProvider(email.getDomain());
 
-        if (!email.getFrom().equalsIgnoreCase(emailProperties.getProperty(MAIL_IMAP_FROM))) {
-            emailProperties.setProperty(MAIL_IMAP_FROM, email.getFrom());
+        AccountConfig config = accounts.get(key);
+        if (config == null) {
+            final String host = provider.getImapServer();
+            final Integer port = provider.getImapPort();
+            if (host == null) throw new EmailServerNotFoundException("not imap server found");
+
+            config = new AccountConfig(key, host, port, createReceiveProperties(key, host, port));
+
+            final AccountConfig previous = accounts.putIfAbsent(key, config);
+            if (previous != null) config = previous;
         }
+        return config;
+    }
 
-        /*if (!Boolean.TRUE.toString().equalsIgnoreCase(EMAIL_PROPERTIES.getProperty(MAIL_IMAP_AUTH))) {
-            EMAIL_PROPERTIES.setProperty(MAIL_IMAP_AUTH, Boolean.TRUE.toString());
-        }*/
+    private Properties createSendProperties(final AccountKey key, final String host, final Integer port) {
+        final Properties properties = new Properties();
+        properties.putAll(emailProperties);
+
+        properties.setProperty(MAIL_DEBUG, String.valueOf(key.isDebug()));
+        properties.setProperty(MAIL_TRANSPORT_PROTOCOL, MAIL_TRANSPORT_PROTOCOL_SMTP);
+        properties.setProperty(MAIL_SMTP_USER, key.getUsername());
+        properties.setProperty(MAIL_SMTP_HOST, host);
+        properties.setProperty(MAIL_SMTP_PORT, port.toString());
+        properties.setProperty(MAIL_SMTP_FROM, key.getFrom());
+        properties.setProperty(MAIL_SMTP_AUTH, Boolean.TRUE.toString());
+        properties.setProperty(MAIL_SMTP_SENDPARTIAL, Boolean.TRUE.toString());
+        properties.setProperty(MAIL_SMTP_STARTTLS_ENABLE, Boolean.TRUE.toString());
+        properties.setProperty(MAIL_SMTP_STARTTLS_REQUIRED, Boolean.TRUE.toString());
+
+        if (SMTP_TIMEOUT != null) {
+            properties.setProperty(MAIL_SMTP_TIMEOUT, SMTP_TIMEOUT.toString());
+        }
 
-        /*if (!Boolean.TRUE.toString().equalsIgnoreCase(EMAIL_PROPERTIES.getProperty(MAIL_IMAP_SENDPARTIAL))) {
-            EMAIL_PROPERTIES.setProperty(MAIL_IMAP_SENDPARTIAL, Boolean.TRUE.toString());
-        }*/
+        if (SMTP_CONNECTION_TIMEOUT != null) {
+            properties.setProperty(MAIL_SMTP_CONNECTIONTIMEOUT, SMTP_CONNECTION_TIMEOUT.toString());
+        }
+
+        return properties;
+    }
 
-        /*if (!Boolean.TRUE.toString().equalsIgnoreCase(EMAIL_PROPERTIES.getProperty(MAIL_IMAP_STARTTLS_ENABLE))) {
-            EMAIL_PROPERTIES.setProperty(MAIL_IMAP_STARTTLS_ENABLE, Boolean.TRUE.toString());
-        }*/
+    private Properties createReceiveProperties(final AccountKey key, final String host, final Integer port) {
+        final Properties properties = new Properties();
+        properties.putAll(emailProperties);
 
-        /*if (!Boolean.TRUE.toString().equalsIgnoreCase(EMAIL_PROPERTIES.getProperty(MAIL_IMAP_STARTTLS_REQUIRED))) {
-            EMAIL_PROPERTIES.setProperty(MAIL_IMAP_STARTTLS_REQUIRED, Boolean.TRUE.toString());
-        }*/
+        properties.setProperty(MAIL_DEBUG, String.valueOf(key.isDebug()));
+        properties.setProperty(MAIL_STORE_PROTOCOL, MAIL_STORE_PROTOCOL_IMAPS);
+        properties.setProperty(MAIL_IMAP_USER, key.getUsername());
+        properties.setProperty(MAIL_IMAP_HOST, host);
+        if (port != null) properties.setProperty(MAIL_IMAP_PORT, port.toString());
+        properties.setProperty(MAIL_IMAP_FROM, key.getFrom());
 
-        if (IMAP_TIMEOUT != null && !IMAP_TIMEOUT.toString()
-                .equalsIgnoreCase(emailProperties.getProperty(MAIL_IMAP_TIMEOUT))) {
-            emailProperties.setProperty(MAIL_IMAP_TIMEOUT, IMAP_TIMEOUT.toString());
+        if (IMAP_TIMEOUT != null) {
+            properties.setProperty(MAIL_IMAP_TIMEOUT, IMAP_TIMEOUT.toString());
         }
 
-        if (IMAP_CONNECTION_TIMEOUT != null && !IMAP_CONNECTION_TIMEOUT.toString()
-                .equalsIgnoreCase(emailProperties.getProperty(MAIL_IMAP_CONNECTIONTIMEOUT))) {
-            emailProperties.setProperty(MAIL_IMAP_CONNECTIONTIMEOUT, IMAP_CONNECTION_TIMEOUT.toString());
+        if (IMAP_CONNECTION_TIMEOUT != null) {
+            properties.setProperty(MAIL_IMAP_CONNECTIONTIMEOUT, IMAP_CONNECTION_TIMEOUT.toString());
         }
 
-        return emailProperties;
+        return properties;
     }
 
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.mime;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import mcaligares.modules.email.exception.EmailException;
+
+/**
+ * Message body already transfer encoded, ready to be written as is by any
+ * number of {@link EncodedMimeMessage}s. Immutable.
+ *
+ * @author miguel
+ *
+ */
+public final class EncodedContent {
+
+    private final byte[] bytes;
+    private final String contentType;
+
+    private EncodedContent(byte[] bytes, String contentType) {
+        this.bytes = bytes;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Encodes the multipart body, including the base64 encoding of every
+     * attachment, once.
+     */
+    public static EncodedContent encode(final Session session, final Multipart multipart) throws EmailException {
+        try {
+            // Saving a throwaway message computes the transfer encoding of every part
+            final MimeMessage message = new MimeMessage(session);
+            message.setContent(multipart);
+            message.saveChanges();
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            multipart.writeTo(output);
+
+            return new EncodedContent(output.toByteArray(), multipart.getContentType());
+        } catch (MessagingException e) {
+            throw new EmailException(e);
+        } catch (Exception e) {
+            throw new EmailException("cannot encode message content", e);
+        }
+    }
+
+    /**
+     * Bytes shared by every message using this content, must not be modified.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public int getSize() {
+        return bytes.length;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.mime;
+
+import java.io.UnsupportedEncodingException;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * MimeMessage whose body is a pre encoded {@link EncodedContent}. Only the
+ * headers are built per message, the body bytes are written untouched.
+ *
+ * @author miguel
+ *
+ */
+public class EncodedMimeMessage extends MimeMessage {
+
+    public static final String FROM = "From";
+    public static final String SUBJECT = "Subject";
+
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String MIME_VERSION = "MIME-Version";
+
+    public EncodedMimeMessage(Session session, EncodedContent encoded) throws MessagingException {
+        super(session);
+        if (encoded == null) throw new NullPointerException("encoded content cannot be null");
+
+        this.content = encoded.getBytes();
+        setHeader(CONTENT_TYPE, encoded.getContentType());
+    }
+
+    /**
+     * Subject header as {@link MimeMessage#setSubject(String)} renders it, so
+     * it can be encoded once and set on many messages.
+     */
+    public static String encodeSubject(final String subject) throws UnsupportedEncodingException {
+        return MimeUtility.fold(SUBJECT.length() + 2, MimeUtility.encodeText(subject, null, null));
+    }
+
+    @Override
+    protected void updateHeaders() throws MessagingException {
+        // Body headers were computed when the content was encoded
+        setHeader(MIME_VERSION, "1.0");
+        updateMessageID();
+
+        // Write the encoded bytes as they are instead of re-encoding the body
+        modified = false;
+    }
+
+}
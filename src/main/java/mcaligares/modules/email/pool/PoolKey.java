@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.pool;
+
+/**
+ * Identifies a pooled connection by server host, port and the account
+ * credentials and settings it logged in with. Connections are only shared
+ * by callers with the same password, from address and debug flag, so a
+ * wrong password never gets a connection another caller authenticated.
+ *
+ * @author miguel
+ *
+ */
+public final class PoolKey {
+
+    private final String host;
+    private final Integer port;
+    private final String username;
+    private final String password;
+    private final String from;
+    private final boolean debug;
+
+    public PoolKey(String host, Integer port, String username, String password, String from, boolean debug) {
+        super();
+        if (host == null) throw new NullPointerException("host cannot be null");
+        if (username == null) throw new NullPointerException("username cannot be null");
+        if (password == null) throw new NullPointerException("password cannot be null");
+        if (from == null) throw new NullPointerException("from cannot be null");
+        this.host = host.toLowerCase();
+        this.port = port;
+        this.username = username.toLowerCase();
+        this.password = password;
+        this.from = from;
+        this.debug = debug;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public Integer getPort() {
+        return port;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = host.hashCode();
+        result = 31 * result + (port != null ? port.hashCode() : 0);
+        result = 31 * result + username.hashCode();
+        result = 31 * result + password.hashCode();
+        result = 31 * result + from.hashCode();
+        result = 31 * result + (debug ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof PoolKey)) return false;
+        PoolKey other = (PoolKey) obj;
+        return host.equals(other.host) && username.equals(other.username)
+                && (port == null ? other.port == null : port.equals(other.port))
+                && password.equals(other.password) && from.equals(other.from) && debug == other.debug;
+    }
+
+    /**
+     * Account and server only, the password is left out
+     */
+    @Override
+    public String toString() {
+        return username + "@" + host + (port != null ? ":" + port : "");
+    }
+
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.pool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.mail.Service;
+import javax.mail.Session;
+
+import mcaligares.modules.email.exception.EmailException;
+
+/**
+ * Keyed pool of connected {@link Service}s. Idle connections are checked with
+ * {@link Service#isConnected()} (a NOOP for SMTP and IMAP) before being handed
+ * out again and are closed once they stay idle longer than the idle timeout.
+ *
+ * @author miguel
+ *
+ */
+public abstract class ServicePool<S extends Service> {
+
+    private final int maxPerKey;
+    private final int maxTotal;
+    private final long idleTimeout;
+    private final long maxWait;
+
+    private final Map<PoolKey, LinkedList<Idle<S>>> idle = new HashMap<PoolKey, LinkedList<Idle<S>>>();
+    private final Map<PoolKey, Integer> counts = new HashMap<PoolKey, Integer>();
+    private final Timer evictor;
+    private int total;
+    private boolean closed;
+
+    private static final class Idle<S> {
+        private final S service;
+        private final long since;
+
+        private Idle(S service) {
+            this.service = service;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A service of one key borrowed on demand and held across several uses.
+     * Releasing or invalidating it lets go of the reference, so the next
+     * {@link #get(Session)} borrows again and a service is never handed back
+     * twice.
+     */
+    public static final class Lease<S extends Service> {
+        private final ServicePool<S> pool;
+        private final PoolKey key;
+        private S service;
+
+        private Lease(ServicePool<S> pool, PoolKey key) {
+            this.pool = pool;
+            this.key = key;
+        }
+
+        /**
+         * The held service, borrowed first if there is none.
+         */
+        public S get(final Session session) throws EmailException {
+            if (service == null) service = pool.borrow(key, session);
+            return service;
+        }
+
+        public boolean isHeld() {
+            return service != null;
+        }
+
+        /**
+         * Returns the held service to the pool, if any.
+         */
+        public void release() {
+            final S released = service;
+            service = null;
+            pool.release(key, released);
+        }
+
+        /**
+         * Closes the held service, if any, and frees its slot.
+         */
+        public void invalidate() {
+            final S invalidated = service;
+            service = null;
+            pool.invalidate(key, invalidated);
+        }
+    }
+
+    protected ServicePool(int maxPerKey, int maxTotal, long idleTimeout, long maxWait) {
+        super();
+        if (maxPerKey < 1) throw new IllegalArgumentException("maxPerKey must be greater than zero");
+        if (maxTotal < maxPerKey) throw new IllegalArgumentException("maxTotal cannot be lower than maxPerKey");
+
+        this.maxPerKey = maxPerKey;
+        this.maxTotal = maxTotal;
+        this.idleTimeout = idleTimeout;
+        this.maxWait = maxWait;
+
+        if (idleTimeout > 0) {
+            evictor = new Timer(getClass().getSimpleName() + "-evictor", true);
+            evictor.schedule(new TimerTask() {
+                public void run() {
+                    evictIdle();
+                }
+            }, idleTimeout, idleTimeout);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Creates and connects a new service for the given key.
+     */
+    protected abstract S create(PoolKey key, Session session) throws Exception;
+
+    /**
+     * Hook invoked before a service is closed and dropped from the pool.
+     */
+    protected void destroyed(S service) {
+    }
+
+    /**
+     * Borrows a connected service, reusing an idle one if it still answers.
+     * Blocks up to the configured max wait when the pool limits are reached.
+     */
+    public S borrow(final PoolKey key, final Session session) throws EmailException {
+        final long deadline = System.currentTimeMillis() + maxWait;
+
+        while (true) {
+            S candidate = null;
+            List<S> stale = null;
+
+            synchronized (this) {
+                if (closed) throw new EmailException("connection pool is closed");
+
+                LinkedList<Idle<S>> queue = idle.get(key);
+                if (queue != null && !queue.isEmpty()) {
+                    // Most recently used first, it is the likeliest to be alive
+                    candidate = queue.removeLast().service;
+
+                } else if (count(key) < maxPerKey) {
+                    if (total >= maxTotal) {
+                        // Make room closing an idle connection of another key
+                        stale = takeOldestIdle();
+                    }
+                    if (total < maxTotal || stale != null) {
+                        reserve(key);
+                    } else {
+                        await(deadline, key);
+                        continue;
+                    }
+                } else {
+                    await(deadline, key);
+                    continue;
+                }
+            }
+
+            if (stale != null) closeAll(stale);
+
+            if (candidate != null) {
+                if (candidate.isConnected()) return candidate;
+                invalidate(key, candidate);
+                continue;
+            }
+
+            try {
+                return create(key, session);
+            } catch (Exception e) {
+                synchronized (this) {
+                    unreserve(key);
+                }
+                throw new EmailException("cannot connect to " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Holds nothing until its first {@link Lease#get(Session)}.
+     */
+    public Lease<S> lease(final PoolKey key) {
+        if (key == null) throw new NullPointerException("key cannot be null");
+        return new Lease<S>(this, key);
+    }
+
+    /**
+     * Returns a healthy service to the pool.
+     */
+    public void release(final PoolKey key, final S service) {
+        if (service == null) return;
+
+        synchronized (this) {
+            if (!closed) {
+                LinkedList<Idle<S>> queue = idle.get(key);
+                if (queue == null) {
+                    queue = new LinkedList<Idle<S>>();
+                    idle.put(key, queue);
+                }
+                queue.addLast(new Idle<S>(service));
+                notifyAll();
+                return;
+            }
+            unreserve(key);
+        }
+        close(service);
+    }
+
+    /**
+     * Closes a broken service and frees its slot.
+     */
+    public void invalidate(final PoolKey key, final S service) {
+        if (service == null) return;
+
+        synchronized (this) {
+            unreserve(key);
+        }
+        close(service);
+    }
+
+    /**
+     * Closes every connection idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        final List<S> expired = new ArrayList<S>();
+        final long limit = System.currentTimeMillis() - idleTimeout;
+
+        synchronized (this) {
+            for (Iterator<Map.Entry<PoolKey, LinkedList<Idle<S>>>> it = idle.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<PoolKey, LinkedList<Idle<S>>> entry = it.next();
+                Iterator<Idle<S>> queue = entry.getValue().iterator();
+                while (queue.hasNext()) {
+                    Idle<S> item = queue.next();
+                    if (item.since < limit) {
+                        queue.remove();
+                        unreserveLocked(entry.getKey());
+                        expired.add(item.service);
+                    }
+                }
+                if (entry.getValue().isEmpty()) it.remove();
+            }
+            if (!expired.isEmpty()) notifyAll();
+        }
+        closeAll(expired);
+    }
+
+    /**
+     * Closes every idle connection and rejects further borrows.
+     */
+    public void close() {
+        final List<S> all = new ArrayList<S>();
+
+        synchronized (this) {
+            closed = true;
+            for (Map.Entry<PoolKey, LinkedList<Idle<S>>> entry : idle.entrySet()) {
+                for (Idle<S> item : entry.getValue()) {
+                    unreserveLocked(entry.getKey());
+                    all.add(item.service);
+                }
+            }
+            idle.clear();
+            notifyAll();
+        }
+        if (evictor != null) evictor.cancel();
+        closeAll(all);
+    }
+
+    public int getMaxPerKey() {
+        return maxPerKey;
+    }
+
+    public synchronized int getTotal() {
+        return total;
+    }
+
+    public synchronized int getIdle() {
+        int count = 0;
+        for (LinkedList<Idle<S>> queue : idle.values()) count += queue.size();
+        return count;
+    }
+
+    private int count(final PoolKey key) {
+        Integer count = counts.get(key);
+        return count != null ? count : 0;
+    }
+
+    private void reserve(final PoolKey key) {
+        counts.put(key, count(key) + 1);
+        total++;
+    }
+
+    private void unreserve(final PoolKey key) {
+        unreserveLocked(key);
+        notifyAll();
+    }
+
+    private void unreserveLocked(final PoolKey key) {
+        int count = count(key) - 1;
+        if (count > 0) counts.put(key, count);
+        else counts.remove(key);
+        total--;
+    }
+
+    private List<S> takeOldestIdle() {
+        PoolKey oldestKey = null;
+        Idle<S> oldest = null;
+        for (Map.Entry<PoolKey, LinkedList<Idle<S>>> entry : idle.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                Idle<S> first = entry.getValue().getFirst();
+                if (oldest == null || first.since < oldest.since) {
+                    oldest = first;
+                    oldestKey = entry.getKey();
+                }
+            }
+        }
+        if (oldest == null) return null;
+
+        idle.get(oldestKey).removeFirst();
+        if (idle.get(oldestKey).isEmpty()) idle.remove(oldestKey);
+        unreserveLocked(oldestKey);
+
+        List<S> stale = new ArrayList<S>(1);
+        stale.add(oldest.service);
+        return stale;
+    }
+
+    private void await(final long deadline, final PoolKey key) throws EmailException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) throw new EmailException("timeout waiting for a connection to " + key);
+        try {
+            wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("interrupted waiting for a connection to " + key, e);
+        }
+    }
+
+    private void closeAll(final List<S> services) {
+        for (S service : services) close(service);
+    }
+
+    private void close(final S service) {
+        destroyed(service);
+        try {
+            service.close();
+        } catch (Exception e) {}
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.pool;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import mcaligares.modules.email.manager.EmailManager;
+
+/**
+ * Pool of authenticated IMAP {@link Store}s, so consecutive receives skip the
+ * login. A store keeps up to maxFolders of its folders open when it goes back,
+ * the most recently used, so the next receive also skips the SELECT. An open
+ * IMAP folder keeps every message it fetched and may hold a connection of its
+ * own, outside the pool limits: only folders of at most maxFolderMessages
+ * messages stay open, the rest are closed on release, as are all of them
+ * when the store is closed.
+ * <p>
+ * A store and its folders belong to the thread that borrowed it until it is
+ * released.
+ *
+ * @author miguel
+ *
+ */
+public class StorePool extends ServicePool<Store> {
+
+    private final Map<Store, Map<String, Folder>> folders = new ConcurrentHashMap<Store, Map<String, Folder>>();
+    private final int maxFolders;
+    private final int maxFolderMessages;
+
+    /**
+     * Folders are closed every time a store goes back.
+     */
+    public StorePool(int maxPerKey, int maxTotal, long idleTimeout, long maxWait) {
+        this(maxPerKey, maxTotal, idleTimeout, maxWait, 0, 0);
+    }
+
+    /**
+     * @param maxFolders folders each idle store keeps open, zero to close them all
+     * @param maxFolderMessages most messages of a folder kept open
+     */
+    public StorePool(int maxPerKey, int maxTotal, long idleTimeout, long maxWait, int maxFolders,
+            int maxFolderMessages) {
+        super(maxPerKey, maxTotal, idleTimeout, maxWait);
+        this.maxFolders = Math.max(maxFolders, 0);
+        this.maxFolderMessages = Math.max(maxFolderMessages, 0);
+    }
+
+    /**
+     * Returns the folder of a borrowed store opened read only, reusing the one
+     * opened earlier, in this borrow or a previous one, when it is still open.
+     */
+    public Folder getFolder(final Store store, final String name) throws MessagingException {
+        Map<String, Folder> opened = folders.get(store);
+        if (opened == null) {
+            // Access ordered, the least recently used folder is closed first
+            opened = new LinkedHashMap<String, Folder>(16, 0.75f, true);
+            folders.put(store, opened);
+        }
+
+        Folder folder = opened.get(name);
+        if (folder == null || !folder.isOpen()) {
+            folder = store.getFolder(name);
+            folder.open(Folder.READ_ONLY);
+            opened.put(name, folder);
+        }
+        return folder;
+    }
+
+    @Override
+    protected Store create(final PoolKey key, final Session session) throws Exception {
+        final Store store = session.getStore();
+        // Always a login with the credentials of the key
+        store.connect(key.getHost(), key.getPort() != null ? key.getPort() : -1,
+                session.getProperty(EmailManager.MAIL_IMAP_USER), key.getPassword());
+        return store;
+    }
+
+    /**
+     * Closes the folders the store may not keep, dropping the messages they
+     * cached, and returns it to the pool.
+     */
+    @Override
+    public void release(final PoolKey key, final Store store) {
+        if (store != null) trimFolders(store);
+        super.release(key, store);
+    }
+
+    @Override
+    protected void destroyed(final Store store) {
+        closeFolders(store);
+    }
+
+    private void trimFolders(final Store store) {
+        if (maxFolders == 0) {
+            closeFolders(store);
+            return;
+        }
+
+        final Map<String, Folder> opened = folders.get(store);
+        if (opened == null) return;
+
+        for (Iterator<Folder> it = opened.values().iterator(); it.hasNext();) {
+            final Folder folder = it.next();
+            boolean keep;
+            try {
+                keep = folder.isOpen() && folder.getMessageCount() <= maxFolderMessages;
+            } catch (Exception e) {
+                keep = false;
+            }
+            if (!keep) {
+                it.remove();
+                close(folder);
+            }
+        }
+
+        // Oldest first, the ones over the limit are the least recently used
+        for (Iterator<Folder> it = opened.values().iterator(); opened.size() > maxFolders;) {
+            final Folder folder = it.next();
+            it.remove();
+            close(folder);
+        }
+    }
+
+    private void closeFolders(final Store store) {
+        final Map<String, Folder> opened = folders.remove(store);
+        if (opened == null) return;
+
+        for (Folder folder : opened.values()) close(folder);
+    }
+
+    private static void close(final Folder folder) {
+        try {
+            if (folder.isOpen()) folder.close(false);
+        } catch (Exception e) {}
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.pool;
+
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import mcaligares.modules.email.manager.EmailManager;
+
+/**
+ * Pool of authenticated SMTP {@link Transport}s, so consecutive sends skip
+ * the connect, STARTTLS and AUTH handshake.
+ *
+ * @author miguel
+ *
+ */
+public class TransportPool extends ServicePool<Transport> {
+
+    public TransportPool(int maxPerKey, int maxTotal, long idleTimeout, long maxWait) {
+        super(maxPerKey, maxTotal, idleTimeout, maxWait);
+    }
+
+    @Override
+    protected Transport create(final PoolKey key, final Session session) throws Exception {
+        final Transport transport = session.getTransport();
+        // Always a login with the credentials of the key
+        transport.connect(key.getHost(), key.getPort() != null ? key.getPort() : -1,
+                session.getProperty(EmailManager.MAIL_SMTP_USER), key.getPassword());
+        return transport;
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.provider;
+
+/**
+ * Mail provider endpoints, e.g. gmail or a corporate relay.
+ *
+ * @author miguel
+ *
+ */
+public final class Provider {
+
+    private final String name;
+    private final String smtpServer;
+    private final Integer smtpPort;
+    private final String imapServer;
+    private final Integer imapPort;
+
+    public Provider(String name, String smtpServer, Integer smtpPort, String imapServer) {
+        this(name, smtpServer, smtpPort, imapServer, null);
+    }
+
+    public Provider(String name, String smtpServer, Integer smtpPort, String imapServer, Integer imapPort) {
+        super();
+        if (name == null) throw new NullPointerException("provider name cannot be null");
+        this.name = name.toLowerCase();
+        this.smtpServer = smtpServer;
+        this.smtpPort = smtpPort;
+        this.imapServer = imapServer;
+        this.imapPort = imapPort;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSmtpServer() {
+        return smtpServer;
+    }
+
+    public Integer getSmtpPort() {
+        return smtpPort;
+    }
+
+    public String getImapServer() {
+        return imapServer;
+    }
+
+    public Integer getImapPort() {
+        return imapPort;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
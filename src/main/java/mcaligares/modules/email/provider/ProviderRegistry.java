@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.provider;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mcaligares.modules.email.exception.EmailServerNotFoundException;
+import mcaligares.modules.email.utils.EmailUtils;
+
+/**
+ * Resolves the {@link Provider} of an email domain.
+ * <p>
+ * Providers are read once from the module config.properties:
+ * <pre>
+ * email.domain.&lt;name&gt;      keyword looked for in the domain, e.g. GMAIL
+ * email.alias.&lt;name&gt;       use the servers of another provider
+ * email.smtp.server.&lt;name&gt;
+ * email.smtp.port.&lt;name&gt;
+ * email.imap.server.&lt;name&gt;
+ * email.imap.port.&lt;name&gt;
+ * </pre>
+ * Exact domains and extra providers can be registered at runtime. Every
+ * domain is matched against the keywords only once, later lookups are a
+ * single hash lookup.
+ *
+ * @author miguel
+ *
+ */
+public final class ProviderRegistry {
+
+    public static final String CONFIG_FILE = "mcaligares/modules/email/config.properties";
+
+    private static final String DOMAIN_KEY = "email.domain.";
+    private static final String ALIAS_KEY = "email.alias.";
+    private static final String SMTP_SERVER_KEY = "email.smtp.server.";
+    private static final String SMTP_PORT_KEY = "email.smtp.port.";
+    private static final String IMAP_SERVER_KEY = "email.imap.server.";
+    private static final String IMAP_PORT_KEY = "email.imap.port.";
+
+    private static final int MAX_RESOLVED = 10000;
+    private static final Provider NONE = new Provider("none", null, null, null);
+
+    private static ProviderRegistry instance;
+
+    private final Map<String, Provider> providers = new ConcurrentHashMap<String, Provider>();
+    private final Map<String, Provider> domains = new ConcurrentHashMap<String, Provider>();
+    private final Map<String, Provider> resolved = new ConcurrentHashMap<String, Provider>();
+    private volatile Keyword[] keywords = new Keyword[0];
+    private volatile int version;
+
+    private static final class Keyword {
+        private final String keyword;
+        private final Provider provider;
+
+        private Keyword(String keyword, Provider provider) {
+            this.keyword = keyword;
+            this.provider = provider;
+        }
+    }
+
+    public ProviderRegistry() {
+        super();
+    }
+
+    /**
+     * Registry loaded from the module config.properties.
+     */
+    public static synchronized ProviderRegistry getDefault() {
+        if (instance == null) {
+            final Properties properties = new Properties();
+            InputStream input = null;
+            try {
+                input = ProviderRegistry.class.getClassLoader().getResourceAsStream(CONFIG_FILE);
+                if (input != null) properties.load(input);
+            } catch (Exception e) {
+            } finally {
+                try {
+                    if (input != null) input.close();
+                } catch (Exception e) {}
+            }
+            instance = fromProperties(properties);
+        }
+        return instance;
+    }
+
+    public static ProviderRegistry fromProperties(final Properties properties) {
+        final ProviderRegistry registry = new ProviderRegistry();
+
+        // Sorted, so keyword matching order does not depend on hashing
+        final TreeSet<String> names = new TreeSet<String>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(DOMAIN_KEY)) names.add(key.substring(DOMAIN_KEY.length()));
+            else if (key.startsWith(SMTP_SERVER_KEY)) names.add(key.substring(SMTP_SERVER_KEY.length()));
+            else if (key.startsWith(IMAP_SERVER_KEY)) names.add(key.substring(IMAP_SERVER_KEY.length()));
+        }
+
+        for (String name : names) {
+            final String smtpServer = trim(properties.getProperty(SMTP_SERVER_KEY + name));
+            final String imapServer = trim(properties.getProperty(IMAP_SERVER_KEY + name));
+            if (smtpServer != null || imapServer != null) {
+                registry.providers.put(name.toLowerCase(), new Provider(name, smtpServer,
+                        toInteger(properties.getProperty(SMTP_PORT_KEY + name)), imapServer,
+                        toInteger(properties.getProperty(IMAP_PORT_KEY + name))));
+            }
+        }
+
+        for (String name : names) {
+            final String keyword = trim(properties.getProperty(DOMAIN_KEY + name));
+            final String alias = trim(properties.getProperty(ALIAS_KEY + name));
+            final Provider provider = registry.providers.get((alias != null ? alias : name).toLowerCase());
+            if (keyword != null && provider != null) {
+                registry.addKeyword(keyword, provider, false);
+            }
+        }
+
+        return registry;
+    }
+
+    /**
+     * Registers a provider, matched by any domain containing one of the keywords.
+     * Keywords registered at runtime are checked before the configured ones.
+     */
+    public synchronized void register(final Provider provider, final String... keywords) {
+        if (provider == null) throw new NullPointerException("provider cannot be null");
+
+        providers.put(provider.getName(), provider);
+        if (keywords != null) {
+            for (String keyword : keywords) {
+                if (EmailUtils.isNotBlank(keyword)) addKeyword(keyword.trim(), provider, true);
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Registers an exact domain, e.g. a corporate domain sent through a relay.
+     */
+    public synchronized void registerDomain(final String domain, final Provider provider) {
+        if (EmailUtils.isBlank(domain)) throw new IllegalArgumentException("domain cannot be blank");
+        if (provider == null) throw new NullPointerException("provider cannot be null");
+
+        providers.put(provider.getName(), provider);
+        domains.put(domain.trim().toLowerCase(), provider);
+        changed();
+    }
+
+    public Provider getProvider(final String name) {
+        return name != null ? providers.get(name.toLowerCase()) : null;
+    }
+
+    /**
+     * @return the provider of the domain or null
+     */
+    public Provider find(final String domain) {
+        if (EmailUtils.isBlank(domain)) return null;
+
+        Provider provider = resolved.get(domain);
+        if (provider == null) {
+            provider = match(domain.trim().toLowerCase());
+            if (resolved.size() >= MAX_RESOLVED) resolved.clear();
+            resolved.put(domain, provider);
+        }
+        return provider != NONE ? provider : null;
+    }
+
+    public Provider resolve(final String domain) throws EmailServerNotFoundException {
+        final Provider provider = find(domain);
+        if (provider == null) throw new EmailServerNotFoundException("not email server found for " + domain);
+        return provider;
+    }
+
+    /**
+     * Changes every time a provider or domain is registered.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    private Provider match(final String domain) {
+        final Provider exact = domains.get(domain);
+        if (exact != null) return exact;
+
+        for (Keyword keyword : keywords) {
+            if (domain.contains(keyword.keyword)) return keyword.provider;
+        }
+        return NONE;
+    }
+
+    private void addKeyword(final String keyword, final Provider provider, final boolean first) {
+        final List<Keyword> list = new ArrayList<Keyword>();
+        for (Keyword k : keywords) list.add(k);
+        list.add(first ? 0 : list.size(), new Keyword(keyword.toLowerCase(), provider));
+        keywords = list.toArray(new Keyword[list.size()]);
+    }
+
+    private void changed() {
+        resolved.clear();
+        version++;
+    }
+
+    private static String trim(final String value) {
+        return EmailUtils.isNotBlank(value) ? value.trim() : null;
+    }
+
+    private static Integer toInteger(final String value) {
+        return EmailUtils.isNotBlank(value) ? Integer.valueOf(value.trim()) : null;
+    }
+
+}
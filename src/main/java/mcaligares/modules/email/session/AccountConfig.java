@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.session;
+
+import java.util.Properties;
+
+import javax.mail.Authenticator;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+
+import mcaligares.modules.email.pool.PoolKey;
+
+/**
+ * Immutable snapshot of the resolved settings of one account and protocol,
+ * together with the {@link Session} built from them. Safe to share between
+ * threads.
+ *
+ * @author miguel
+ *
+ */
+public final class AccountConfig {
+
+    private final AccountKey key;
+    private final String host;
+    private final Integer port;
+    private final PoolKey poolKey;
+    private final Session session;
+
+    public AccountConfig(AccountKey key, String host, Integer port, Properties properties) {
+        super();
+        if (key == null) throw new NullPointerException("key cannot be null");
+        if (properties == null) throw new NullPointerException("properties cannot be null");
+
+        this.key = key;
+        this.host = host;
+        this.port = port;
+        this.poolKey = new PoolKey(host, port, key.getUsername(), key.getPassword(), key.getFrom(), key.isDebug());
+
+        // The session keeps a reference to the properties, give it a private copy
+        final Properties copy = new Properties();
+        copy.putAll(properties);
+
+        final String username = key.getUsername();
+        final String password = key.getPassword();
+        this.session = Session.getInstance(copy, new Authenticator() {
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(username, password);
+            }
+        });
+    }
+
+    public AccountKey getKey() {
+        return key;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public Integer getPort() {
+        return port;
+    }
+
+    public PoolKey getPoolKey() {
+        return poolKey;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+}
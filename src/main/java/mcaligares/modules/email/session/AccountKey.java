@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.session;
+
+import mcaligares.modules.email.entity.Email;
+
+/**
+ * Identifies the account settings a {@link javax.mail.Session} was built for.
+ *
+ * @author miguel
+ *
+ */
+public final class AccountKey {
+
+    private final String protocol;
+    private final String username;
+    private final String password;
+    private final String from;
+    private final boolean debug;
+
+    public AccountKey(String protocol, Email email) {
+        this(protocol, email.getUsername(), email.getPassword(), email.getFrom(),
+                Boolean.TRUE.equals(email.getDebug()));
+    }
+
+    public AccountKey(String protocol, String username, String password, String from, boolean debug) {
+        super();
+        if (protocol == null) throw new NullPointerException("protocol cannot be null");
+        if (username == null) throw new NullPointerException("username cannot be null");
+        if (password == null) throw new NullPointerException("password cannot be null");
+        if (from == null) throw new NullPointerException("from cannot be null");
+        this.protocol = protocol;
+        this.username = username;
+        this.password = password;
+        this.from = from;
+        this.debug = debug;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = protocol.hashCode();
+        result = 31 * result + username.hashCode();
+        result = 31 * result + password.hashCode();
+        result = 31 * result + from.hashCode();
+        result = 31 * result + (debug ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof AccountKey)) return false;
+        AccountKey other = (AccountKey) obj;
+        return debug == other.debug && protocol.equals(other.protocol) && username.equals(other.username)
+                && password.equals(other.password) && from.equals(other.from);
+    }
+
+    @Override
+    public String toString() {
+        return protocol + ":" + username;
+    }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.spool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+
+import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.exception.EmailServerNotFoundException;
+import mcaligares.modules.email.exception.InvalidEmailException;
+import mcaligares.modules.email.exception.InvalidUsernameOrPasswordException;
+import mcaligares.modules.email.manager.EmailManager;
+import mcaligares.modules.email.utils.EmailUtils;
+
+/**
+ * Crash safe outbound queue. {@link #enqueue(Email)} returns once the email
+ * is synced to the journal on disk, worker threads then deliver it through
+ * the {@link EmailManager} and retry transient failures with backoff.
+ * Entries still pending when the JVM stops are delivered after restart.
+ * <p>
+ * Delivery is at least once: an email sent right before a crash may be sent
+ * again, but an email with rejected recipients is failed, not retried. The
+ * journal holds the account passwords, keep the spool directory private.
+ *
+ * @author miguel
+ *
+ */
+public class OutboundSpool {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+    private static final long POLL_TIMEOUT = 500;
+
+    private final EmailManager emailManager;
+    private final SpoolJournal journal;
+    private final DelayQueue<Pending> queue = new DelayQueue<Pending>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final int workerCount;
+    private final int maxAttempts;
+
+    private volatile SpoolListener listener;
+    private volatile boolean closed;
+
+    private static final class Pending implements Delayed {
+        private final long id;
+        private final int attempts;
+        private final long due;
+
+        private Pending(long id, int attempts, long delay) {
+            this.id = id;
+            this.attempts = attempts;
+            this.due = System.currentTimeMillis() + delay;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            final Pending pending = (Pending) other;
+            if (due != pending.due) return due < pending.due ? -1 : 1;
+            return id < pending.id ? -1 : (id == pending.id ? 0 : 1);
+        }
+    }
+
+    public OutboundSpool(File directory, EmailManager emailManager, int workers) throws EmailException {
+        this(directory, emailManager, workers, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public OutboundSpool(File directory, EmailManager emailManager, int workers, long segmentSize,
+            int maxAttempts) throws EmailException {
+        super();
+        if (directory == null) throw new NullPointerException("spool directory cannot be null");
+        if (emailManager == null) throw new NullPointerException("email manager cannot be null");
+        if (workers < 1) throw new IllegalArgumentException("workers must be greater than zero");
+
+        this.emailManager = emailManager;
+        this.workerCount = workers;
+        this.maxAttempts = maxAttempts;
+
+        try {
+            this.journal = new SpoolJournal(directory, segmentSize);
+        } catch (Exception e) {
+            throw new EmailException("cannot open spool " + directory, e);
+        }
+
+        // Entries left by a previous run
+        for (Long id : journal.getPending()) {
+            queue.add(new Pending(id, 0, 0));
+        }
+    }
+
+    public void setListener(SpoolListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public synchronized void start() {
+        if (closed) throw new IllegalStateException("spool is closed");
+        if (!workers.isEmpty()) return;
+
+        for (int i = 0; i < workerCount; i++) {
+            final Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "email-spool-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Writes the email to the journal.
+     *
+     * @return the spool id of the email
+     */
+    public long enqueue(final Email email) throws EmailException {
+        if (email == null) throw new NullPointerException("email object is null");
+        if (closed) throw new EmailException("spool is closed");
+
+        // An email send would reject is never journaled
+        EmailUtils.checkSend(email, true);
+
+        try {
+            final long id = journal.enqueue(SpoolCodec.encode(email));
+            queue.add(new Pending(id, 0, 0));
+            return id;
+        } catch (Exception e) {
+            throw new EmailException("cannot write email to spool", e);
+        }
+    }
+
+    /**
+     * @return emails enqueued and not delivered nor failed yet
+     */
+    public int getPending() {
+        return journal.size();
+    }
+
+    /**
+     * Stops the workers, waiting for the sends in progress, and closes the
+     * journal. Pending emails stay on disk.
+     */
+    public void close() throws EmailException {
+        final List<Thread> running;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            running = new ArrayList<Thread>(workers);
+        }
+
+        try {
+            for (Thread worker : running) worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            journal.close();
+        } catch (Exception e) {
+            throw new EmailException("cannot close spool", e);
+        }
+    }
+
+    private void work() {
+        while (!closed) {
+            final Pending pending;
+            try {
+                pending = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (pending != null) deliver(pending);
+        }
+    }
+
+    private void deliver(final Pending pending) {
+        Email email = null;
+        try {
+            final byte[] payload = journal.read(pending.id);
+            if (payload == null) return;
+            email = SpoolCodec.decode(payload);
+        } catch (Exception e) {
+            // Unreadable entry, it would never be delivered
+            finish(pending.id, null, new EmailException("cannot read spool entry " + pending.id, e));
+            return;
+        }
+
+        EmailException error;
+        try {
+            emailManager.send(email);
+            error = null;
+        } catch (EmailException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new EmailException("cannot send spool entry " + pending.id, e);
+        }
+
+        if (error == null) {
+            finish(pending.id, email, null);
+        } else if (isPermanent(error) || pending.attempts + 1 >= maxAttempts) {
+            finish(pending.id, email, error);
+        } else {
+            final long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(pending.attempts, 16));
+            queue.add(new Pending(pending.id, pending.attempts + 1, delay));
+        }
+    }
+
+    private void finish(final long id, final Email email, final EmailException error) {
+        final SpoolListener current = listener;
+        try {
+            journal.done(id);
+        } catch (Exception e) {
+            if (current != null) {
+                try {
+                    current.journalFailed(id, new EmailException("cannot remove spool entry " + id, e));
+                } catch (RuntimeException ignored) {}
+            }
+        }
+
+        // Without a listener the failed email is only dropped from the journal
+        if (current == null) return;
+        try {
+            if (error == null) {
+                current.delivered(id, email);
+            } else {
+                current.failed(id, email, error);
+            }
+        } catch (RuntimeException ignored) {
+            // A broken listener must not stop the worker
+        }
+    }
+
+    /**
+     * Failures a retry cannot fix. A rejected recipient is one of them: with
+     * partial sends the others already got the email and would get it again.
+     */
+    private static boolean isPermanent(final EmailException e) {
+        if (e instanceof InvalidEmailException || e instanceof InvalidUsernameOrPasswordException
+                || e instanceof EmailServerNotFoundException) return true;
+
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof SendFailedException || cause instanceof AddressException) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.spool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mcaligares.modules.email.entity.Attachment;
+import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.exception.EmailException;
+
+/**
+ * Binary form of the outgoing fields of an {@link Email}.
+ *
+ * @author miguel
+ *
+ */
+final class SpoolCodec {
+
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private SpoolCodec() {
+    }
+
+    static byte[] encode(final Email email) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        final DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeByte(VERSION);
+        writeString(output, email.getUsername());
+        writeString(output, email.getPassword());
+        writeString(output, email.getFrom());
+        writeString(output, email.getName());
+        writeString(output, email.getSubject());
+        writeString(output, email.getBody());
+        writeString(output, email.getHtmlFile());
+        output.writeBoolean(Boolean.TRUE.equals(email.getDebug()));
+
+        final List<String> to = email.getTo();
+        output.writeInt(to != null ? to.size() : -1);
+        if (to != null) {
+            for (String address : to) writeString(output, address);
+        }
+
+        final Map<String, String> values = email.getTemplateValues();
+        output.writeInt(values != null ? values.size() : -1);
+        if (values != null) {
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                writeString(output, value.getKey());
+                writeString(output, value.getValue());
+            }
+        }
+
+        final List<Attachment> attaches = email.getAttaches();
+        output.writeInt(attaches != null ? attaches.size() : -1);
+        if (attaches != null) {
+            for (Attachment attach : attaches) {
+                writeString(output, attach.getName());
+                writeString(output, attach.getDescription());
+                writeString(output, attach.getDisposition());
+                writeString(output, attach.getPath());
+                writeString(output, attach.getUrl() != null ? attach.getUrl().toString() : null);
+                writeString(output, attach.getContentType());
+                writeBytes(output, attach.getData());
+            }
+        }
+
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    static Email decode(final byte[] bytes) throws IOException, EmailException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        final int version = input.readByte();
+        if (version != VERSION) throw new IOException("unknown spool record version " + version);
+
+        final Email email = new Email(readString(input), readString(input), readString(input));
+        email.setName(readString(input));
+        email.setSubject(readString(input));
+        email.setBody(readString(input));
+        email.setHtmlFile(readString(input));
+        email.setDebug(input.readBoolean());
+
+        final int to = input.readInt();
+        if (to >= 0) {
+            final List<String> addresses = new ArrayList<String>(to);
+            for (int i = 0; i < to; i++) addresses.add(readString(input));
+            email.setTo(addresses);
+        }
+
+        final int values = input.readInt();
+        if (values >= 0) {
+            final Map<String, String> map = new HashMap<String, String>();
+            for (int i = 0; i < values; i++) map.put(readString(input), readString(input));
+            email.setTemplateValues(map);
+        }
+
+        final int attaches = input.readInt();
+        if (attaches >= 0) {
+            final List<Attachment> list = new ArrayList<Attachment>(attaches);
+            for (int i = 0; i < attaches; i++) {
+                final Attachment attach = new Attachment();
+                attach.setName(readString(input));
+                attach.setDescription(readString(input));
+                attach.setDisposition(readString(input));
+                attach.setPath(readString(input));
+                final String url = readString(input);
+                if (url != null) attach.setUrl(new URL(url));
+                attach.setContentType(readString(input));
+                attach.setData(readBytes(input));
+                list.add(attach);
+            }
+            email.setAttaches(list);
+        }
+
+        return email;
+    }
+
+    private static void writeString(final DataOutputStream output, final String value) throws IOException {
+        writeBytes(output, value != null ? value.getBytes(UTF8) : null);
+    }
+
+    private static String readString(final DataInputStream input) throws IOException {
+        final byte[] bytes = readBytes(input);
+        return bytes != null ? new String(bytes, UTF8) : null;
+    }
+
+    private static void writeBytes(final DataOutputStream output, final byte[] value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(value.length);
+            output.write(value);
+        }
+    }
+
+    private static byte[] readBytes(final DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length < 0) return null;
+
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.spool;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append only journal split in segment files. Every record is
+ * <code>[length][crc32][type][id][payload]</code>.
+ * <p>
+ * A segment is deleted once its records are no longer needed. Segments are
+ * always removed oldest first, so a done record never outlives the enqueue
+ * record it refers to. An old segment with few pending entries gets them
+ * copied forward to the active segment first.
+ *
+ * @author miguel
+ *
+ */
+final class SpoolJournal {
+
+    static final byte ENQUEUE = 1;
+    static final byte DONE = 2;
+
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 4 + 4;
+    private static final int RECORD_HEADER = 1 + 8;
+
+    private final File directory;
+    private final long segmentSize;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<Long, Location> live = new HashMap<Long, Location>();
+    private final AtomicLong synced = new AtomicLong();
+    private final Object syncLock = new Object();
+
+    private Segment activeSegment;
+    private FileChannel active;
+    private long position;
+    private long written;
+    private long nextId = 1;
+    private boolean compacting;
+
+    private static final class Segment {
+        private final long number;
+        private final File file;
+        private int enqueued;
+        private int live;
+
+        private Segment(long number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    SpoolJournal(File directory, long segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create spool directory " + directory);
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        recover();
+        openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+    }
+
+    /**
+     * @return ids of the entries enqueued and not done, oldest first
+     */
+    synchronized List<Long> getPending() {
+        final List<Long> ids = new ArrayList<Long>(live.keySet());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    synchronized int size() {
+        return live.size();
+    }
+
+    /**
+     * Appends and syncs a new entry.
+     *
+     * @return the entry id
+     */
+    long enqueue(final byte[] payload) throws IOException {
+        final long id;
+        final long sequence;
+        synchronized (this) {
+            id = nextId++;
+            append(ENQUEUE, id, payload);
+            sequence = written;
+        }
+        sync(sequence);
+        return id;
+    }
+
+    /**
+     * Marks an entry as finished. Done records are not synced on their own,
+     * they reach the disk with the next enqueue or segment roll.
+     */
+    synchronized void done(final long id) throws IOException {
+        final Location location = live.remove(id);
+        if (location == null) return;
+
+        location.segment.live--;
+        append(DONE, id, null);
+    }
+
+    /**
+     * @return the payload of a pending entry or null if it is done
+     */
+    byte[] read(final long id) throws IOException {
+        while (true) {
+            final Location location;
+            synchronized (this) {
+                location = live.get(id);
+            }
+            if (location == null) return null;
+
+            try {
+                return readPayload(location);
+            } catch (IOException e) {
+                // The entry may have been copied forward and its segment deleted
+                synchronized (this) {
+                    if (live.get(id) == location) throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces every record appended up to the sequence to disk. Concurrent
+     * callers share a single force.
+     */
+    void sync(final long sequence) throws IOException {
+        if (synced.get() >= sequence) return;
+
+        synchronized (syncLock) {
+            if (synced.get() >= sequence) return;
+
+            final FileChannel channel;
+            final long target;
+            synchronized (this) {
+                channel = active;
+                target = written;
+            }
+
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Rolled meanwhile, the roll already forced it
+            }
+            advanceSynced(target);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (active != null && active.isOpen()) {
+            active.force(false);
+            advanceSynced(written);
+            active.close();
+        }
+    }
+
+    private void append(final byte type, final long id, final byte[] payload) throws IOException {
+        final int length = RECORD_HEADER + (payload != null ? payload.length : 0);
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER + length);
+
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putLong(id);
+        if (payload != null) buffer.put(payload);
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER, length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+
+        final long start = position;
+        while (buffer.hasRemaining()) {
+            position += active.write(buffer, position);
+        }
+        written++;
+
+        if (type == ENQUEUE) {
+            track(id, new Location(activeSegment, start + HEADER + RECORD_HEADER, payload.length));
+        }
+
+        if (position >= segmentSize && !compacting) roll();
+    }
+
+    private void track(final long id, final Location location) {
+        final Location previous = live.put(id, location);
+        if (previous != null) previous.segment.live--;
+        location.segment.enqueued++;
+        location.segment.live++;
+    }
+
+    private void roll() throws IOException {
+        active.force(false);
+        advanceSynced(written);
+        active.close();
+
+        openSegment(activeSegment.number + 1);
+        compact();
+    }
+
+    private void compact() throws IOException {
+        compacting = true;
+        try {
+            for (Iterator<Segment> it = segments.values().iterator(); it.hasNext();) {
+                final Segment segment = it.next();
+                if (segment == activeSegment) break;
+
+                if (segment.live > 0) {
+                    // Stop at the first segment still worth keeping
+                    if (segment.live * 2 > segment.enqueued) break;
+
+                    for (Map.Entry<Long, Location> entry : new ArrayList<Map.Entry<Long, Location>>(live.entrySet())) {
+                        if (entry.getValue().segment == segment) {
+                            append(ENQUEUE, entry.getKey(), readPayload(entry.getValue()));
+                        }
+                    }
+                    active.force(false);
+                    advanceSynced(written);
+                }
+
+                it.remove();
+                if (!segment.file.delete()) segment.file.deleteOnExit();
+            }
+        } finally {
+            compacting = false;
+        }
+    }
+
+    private void openSegment(final long number) throws IOException {
+        final File file = new File(directory, String.format("%s%016d%s", PREFIX, number, SUFFIX));
+        activeSegment = new Segment(number, file);
+        segments.put(number, activeSegment);
+        active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        position = active.size();
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) return;
+
+        for (File file : files) {
+            final String number = file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length());
+            try {
+                segments.put(Long.parseLong(number), new Segment(Long.parseLong(number), file));
+            } catch (NumberFormatException e) {}
+        }
+
+        for (Segment segment : segments.values()) {
+            recover(segment);
+        }
+    }
+
+    private void recover(final Segment segment) throws IOException {
+        final FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() == 0) return;
+
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final CRC32 crc = new CRC32();
+
+            while (map.remaining() >= HEADER + RECORD_HEADER) {
+                final int start = map.position();
+                final int length = map.getInt();
+                final int checksum = map.getInt();
+                if (length < RECORD_HEADER || length > map.remaining()) break;
+
+                // Torn or corrupted tail, the rest of the segment is ignored
+                final ByteBuffer record = map.slice();
+                record.limit(length);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) break;
+
+                final byte type = map.get();
+                final long id = map.getLong();
+                final int payload = length - RECORD_HEADER;
+                map.position(start + HEADER + length);
+
+                if (type == ENQUEUE) {
+                    track(id, new Location(segment, start + HEADER + RECORD_HEADER, payload));
+                } else if (type == DONE) {
+                    final Location location = live.remove(id);
+                    if (location != null) location.segment.live--;
+                }
+                if (id >= nextId) nextId = id + 1;
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private byte[] readPayload(final Location location) throws IOException {
+        final FileChannel channel = FileChannel.open(location.segment.file.toPath(), StandardOpenOption.READ);
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(location.length);
+            long offset = location.offset;
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, offset);
+                if (read < 0) throw new IOException("truncated spool segment " + location.segment.file);
+                offset += read;
+            }
+            return buffer.array();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void advanceSynced(final long sequence) {
+        long current;
+        while ((current = synced.get()) < sequence) {
+            if (synced.compareAndSet(current, sequence)) return;
+        }
+    }
+
+}
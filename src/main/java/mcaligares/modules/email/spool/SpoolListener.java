@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.spool;
+
+import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.exception.EmailException;
+
+/**
+ * Notified by the spool workers, from their own threads.
+ *
+ * @author miguel
+ *
+ */
+public interface SpoolListener {
+
+    void delivered(long id, Email email);
+
+    void failed(long id, Email email, EmailException error);
+
+    /**
+     * The entry was delivered or failed but could not be removed from the
+     * journal, it will be sent again after a restart.
+     */
+    void journalFailed(long id, EmailException error);
+
+}
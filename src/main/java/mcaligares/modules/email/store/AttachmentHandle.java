@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reference to an attachment kept in an {@link AttachmentStore}. The content
+ * is shared with every other handle of the same hash, it must not be
+ * modified. Release the handle once the attachment is no longer needed.
+ *
+ * @author miguel
+ *
+ */
+public final class AttachmentHandle {
+
+    private final AttachmentStore store;
+    private final String hash;
+    private final String name;
+    private final long size;
+    private final File file;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    AttachmentHandle(AttachmentStore store, String hash, String name, long size, File file) {
+        super();
+        this.store = store;
+        this.hash = hash;
+        this.name = name;
+        this.size = size;
+        this.file = file;
+    }
+
+    /**
+     * SHA-256 of the content, in hex
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * File name of the attachment in the message
+     */
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Stored blob, read only
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public InputStream openInputStream() throws IOException {
+        return Channels.newInputStream(openChannel());
+    }
+
+    public FileChannel openChannel() throws IOException {
+        if (released.get()) throw new IOException("attachment handle already released");
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Copies the content with {@link FileChannel#transferTo}, no user space
+     * buffer between the blob and the target.
+     */
+    public long transferTo(final WritableByteChannel target) throws IOException {
+        final FileChannel channel = openChannel();
+        try {
+            final long total = channel.size();
+            long position = 0;
+            while (position < total) {
+                position += channel.transferTo(position, total - position, target);
+            }
+            return total;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Copies the content to a file of its own, e.g. to hand it out for editing.
+     */
+    public File copyTo(final File target) throws IOException {
+        final FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            transferTo(channel);
+        } finally {
+            channel.close();
+        }
+        return target;
+    }
+
+    /**
+     * Drops this reference, the blob is deleted with the last one.
+     */
+    public void release() throws IOException {
+        if (released.compareAndSet(false, true)) store.release(hash);
+    }
+
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + hash + ")";
+    }
+
+}
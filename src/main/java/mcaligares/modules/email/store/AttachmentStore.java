@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content addressed store of received attachments. Every blob is named by
+ * the SHA-256 of its content, computed while it is streamed to disk, so the
+ * same file received many times is stored once.
+ * <p>
+ * Blobs are reference counted, each {@link #put(InputStream, String)} adds a
+ * reference and each {@link AttachmentHandle#release()} removes one. The
+ * blob is deleted with its last reference. Counts are kept next to the blobs
+ * and survive restarts. They are always read from disk under a lock on the
+ * directory, so stores in this JVM or in others can share it.
+ *
+ * @author miguel
+ *
+ */
+public class AttachmentStore {
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final String REFS_SUFFIX = ".refs";
+    private static final String LOCK_FILE = ".lock";
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static AttachmentStore instance;
+    // A FileLock is held by the whole JVM, stores of the same directory take turns here first
+    private static final Map<String, Object> LOCKS = new HashMap<String, Object>();
+
+    private final File directory;
+    private final File temp;
+    private final File lockFile;
+    private final Object lock;
+
+    public AttachmentStore(File directory) throws IOException {
+        super();
+        this.directory = directory;
+        this.temp = new File(directory, "tmp");
+        if (!temp.isDirectory() && !temp.mkdirs())
+            throw new IOException("cannot create attachment directory " + directory);
+
+        this.lockFile = new File(directory, LOCK_FILE);
+        synchronized (LOCKS) {
+            final String path = directory.getCanonicalPath();
+            Object shared = LOCKS.get(path);
+            if (shared == null) {
+                shared = new Object();
+                LOCKS.put(path, shared);
+            }
+            this.lock = shared;
+        }
+    }
+
+    /**
+     * Store used by received messages, in the temp directory unless another
+     * one is set.
+     */
+    public static synchronized AttachmentStore getDefault() throws IOException {
+        if (instance == null) {
+            instance = new AttachmentStore(
+                    new File(System.getProperty("java.io.tmpdir"), "mcaligares-email-attachments"));
+        }
+        return instance;
+    }
+
+    public static synchronized void setDefault(final AttachmentStore store) {
+        instance = store;
+    }
+
+    /**
+     * Streams the content into the store and closes the input.
+     *
+     * @return a handle holding one reference to the blob
+     */
+    public AttachmentHandle put(final InputStream input, final String name) throws IOException {
+        final MessageDigest digest = newDigest();
+        final File partial = File.createTempFile("attach", null, temp);
+        long size = 0;
+
+        try {
+            final ReadableByteChannel source = Channels.newChannel(new DigestInputStream(input, digest));
+            final FileChannel target = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE);
+            try {
+                // The stream channel blocks until it reads something, zero means the end
+                long read;
+                while ((read = target.transferFrom(source, size, TRANSFER_CHUNK)) > 0) {
+                    size += read;
+                }
+            } finally {
+                target.close();
+            }
+        } catch (IOException e) {
+            partial.delete();
+            throw e;
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {}
+        }
+
+        final String hash = toHex(digest.digest());
+        final File blob = getBlob(hash);
+
+        synchronized (lock) {
+            final FileLock held = lockDirectory();
+            try {
+                final int count = getRefs(hash);
+                if (blob.isFile()) {
+                    // Already stored, only one more reference
+                    partial.delete();
+                } else {
+                    // New, or lost while other references are still held
+                    moveIntoPlace(partial, blob);
+                }
+                setRefs(hash, count + 1);
+            } finally {
+                unlock(held);
+            }
+        }
+
+        return new AttachmentHandle(this, hash, name, size, blob);
+    }
+
+    /**
+     * @return a new handle of a stored blob, adding a reference, or null if it is not stored
+     */
+    public AttachmentHandle get(final String hash, final String name) throws IOException {
+        final File blob = getBlob(hash);
+        return retain(hash) ? new AttachmentHandle(this, hash, name, blob.length(), blob) : null;
+    }
+
+    /**
+     * Adds a reference to a stored blob, for holders that keep only its hash.
+     *
+     * @return false if it is not stored
+     */
+    public boolean retain(final String hash) throws IOException {
+        synchronized (lock) {
+            final FileLock held = lockDirectory();
+            try {
+                final int count = getRefs(hash);
+                if (count <= 0 || !getBlob(hash).isFile()) return false;
+
+                setRefs(hash, count + 1);
+                return true;
+            } finally {
+                unlock(held);
+            }
+        }
+    }
+
+    public int getReferences(final String hash) throws IOException {
+        synchronized (lock) {
+            final FileLock held = lockDirectory();
+            try {
+                return Math.max(getRefs(hash), 0);
+            } finally {
+                unlock(held);
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Removes a reference added by {@link #retain(String)}.
+     */
+    public void release(final String hash) throws IOException {
+        synchronized (lock) {
+            final FileLock held = lockDirectory();
+            try {
+                final int count = getRefs(hash) - 1;
+                if (count > 0) {
+                    setRefs(hash, count);
+                    return;
+                }
+
+                getBlob(hash).delete();
+                getRefsFile(hash).delete();
+            } finally {
+                unlock(held);
+            }
+        }
+    }
+
+    private FileLock lockDirectory() throws IOException {
+        final FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void unlock(final FileLock held) throws IOException {
+        try {
+            held.release();
+        } finally {
+            held.channel().close();
+        }
+    }
+
+    private int getRefs(final String hash) throws IOException {
+        final File file = getRefsFile(hash);
+        return file.isFile() ? Integer.parseInt(new String(Files.readAllBytes(file.toPath()), "US-ASCII").trim()) : 0;
+    }
+
+    private void setRefs(final String hash, final int count) throws IOException {
+        final File file = getRefsFile(hash);
+        final File partial = new File(temp, hash + REFS_SUFFIX);
+        Files.write(partial.toPath(), String.valueOf(count).getBytes("US-ASCII"));
+        moveIntoPlace(partial, file);
+    }
+
+    private File getBlob(final String hash) {
+        // Two levels, so no directory gets too many entries
+        return new File(new File(directory, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private File getRefsFile(final String hash) {
+        final File blob = getBlob(hash);
+        return new File(blob.getParentFile(), blob.getName() + REFS_SUFFIX);
+    }
+
+    private static void moveIntoPlace(final File source, final File target) throws IOException {
+        final File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("cannot create " + parent);
+
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+}
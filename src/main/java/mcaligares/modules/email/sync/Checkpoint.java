@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.sync;
+
+/**
+ * Sync position of a folder: its UIDVALIDITY and the highest UID already
+ * received. The UID is meaningless once the UIDVALIDITY changes.
+ *
+ * @author miguel
+ *
+ */
+public final class Checkpoint {
+
+    private final long uidValidity;
+    private final long lastUid;
+
+    public Checkpoint(long uidValidity, long lastUid) {
+        super();
+        this.uidValidity = uidValidity;
+        this.lastUid = lastUid;
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public long getLastUid() {
+        return lastUid;
+    }
+
+    /**
+     * @return the highest UID seen or zero if the folder was recreated since
+     */
+    public long getLastUid(final long currentUidValidity) {
+        return uidValidity == currentUidValidity ? lastUid : 0;
+    }
+
+    @Override
+    public String toString() {
+        return uidValidity + ":" + lastUid;
+    }
+
+}
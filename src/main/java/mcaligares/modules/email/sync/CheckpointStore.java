@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a {@link Checkpoint} per account and folder, each one in its own
+ * small file of the directory. Files are replaced atomically, a crash leaves
+ * either the previous or the new checkpoint.
+ *
+ * @author miguel
+ *
+ */
+public class CheckpointStore {
+
+    private static final String SUFFIX = ".checkpoint";
+    private static final String UID_VALIDITY = "uidvalidity";
+    private static final String LAST_UID = "lastuid";
+
+    private final File directory;
+    private final Map<String, Checkpoint> cache = new ConcurrentHashMap<String, Checkpoint>();
+
+    public CheckpointStore(File directory) throws IOException {
+        super();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create checkpoint directory " + directory);
+
+        this.directory = directory;
+    }
+
+    /**
+     * @return the checkpoint of the account folder or null if it was never synced
+     */
+    public Checkpoint get(final String account, final String folder) throws IOException {
+        final String name = fileName(account, folder);
+
+        Checkpoint checkpoint = cache.get(name);
+        if (checkpoint == null) {
+            final File file = new File(directory, name);
+            if (!file.isFile()) return null;
+
+            final Properties properties = new Properties();
+            final InputStream input = new FileInputStream(file);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+
+            try {
+                checkpoint = new Checkpoint(Long.parseLong(properties.getProperty(UID_VALIDITY)),
+                        Long.parseLong(properties.getProperty(LAST_UID)));
+            } catch (RuntimeException e) {
+                // Unreadable, start over
+                return null;
+            }
+            cache.put(name, checkpoint);
+        }
+        return checkpoint;
+    }
+
+    public synchronized void put(final String account, final String folder, final Checkpoint checkpoint) throws IOException {
+        final String name = fileName(account, folder);
+
+        final Properties properties = new Properties();
+        properties.setProperty(UID_VALIDITY, String.valueOf(checkpoint.getUidValidity()));
+        properties.setProperty(LAST_UID, String.valueOf(checkpoint.getLastUid()));
+
+        final File file = new File(directory, name);
+        final File temp = new File(directory, name + ".tmp");
+        final FileOutputStream output = new FileOutputStream(temp);
+        try {
+            properties.store(output, account + " " + folder);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        cache.put(name, checkpoint);
+    }
+
+    /**
+     * Writes the checkpoint only if it is ahead of the stored one: a higher
+     * UIDVALIDITY, which only grows, or the same one with a higher last uid.
+     * Concurrent syncs of the same folder can then finish in any order
+     * without moving it back.
+     *
+     * @return false if the stored checkpoint was kept
+     */
+    public synchronized boolean putIfNewer(final String account, final String folder, final Checkpoint checkpoint)
+            throws IOException {
+        final Checkpoint current = get(account, folder);
+        if (current != null && (current.getUidValidity() > checkpoint.getUidValidity()
+                || current.getUidValidity() == checkpoint.getUidValidity()
+                        && current.getLastUid() >= checkpoint.getLastUid())) {
+            return false;
+        }
+
+        put(account, folder, checkpoint);
+        return true;
+    }
+
+    /**
+     * Forgets the checkpoint, next sync starts from the first message.
+     */
+    public synchronized void remove(final String account, final String folder) throws IOException {
+        final String name = fileName(account, folder);
+        cache.remove(name);
+
+        final File file = new File(directory, name);
+        if (file.exists() && !file.delete()) throw new IOException("cannot delete checkpoint " + file);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private static String fileName(final String account, final String folder) {
+        try {
+            return URLEncoder.encode(account.toLowerCase() + "/" + folder, "UTF-8") + SUFFIX;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.template;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Template split once into literal text and <code>${name}</code> placeholders.
+ * Immutable and safe to render from many threads.
+ *
+ * @author miguel
+ *
+ */
+public final class CompiledTemplate {
+
+    private static final String OPEN = "${";
+    private static final char CLOSE = '}';
+    private static final int MAX_BUFFER = 1024 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder(4096);
+        }
+    };
+
+    private final String source;
+    private final String[] literals;
+    private final String[] names;
+    private final int length;
+
+    private CompiledTemplate(String source, String[] literals, String[] names) {
+        this.source = source;
+        this.literals = literals;
+        this.names = names;
+
+        int length = 0;
+        for (String literal : literals) length += literal.length();
+        this.length = length;
+    }
+
+    /**
+     * Compiles the text. An unclosed placeholder is kept as literal text.
+     */
+    public static CompiledTemplate compile(final String source) {
+        if (source == null) throw new NullPointerException("template source cannot be null");
+
+        final List<String> literals = new ArrayList<String>();
+        final List<String> names = new ArrayList<String>();
+
+        int from = 0;
+        int start;
+        while ((start = source.indexOf(OPEN, from)) != -1) {
+            final int end = source.indexOf(CLOSE, start + OPEN.length());
+            if (end == -1) break;
+
+            literals.add(source.substring(from, start));
+            names.add(source.substring(start + OPEN.length(), end).trim());
+            from = end + 1;
+        }
+        literals.add(source.substring(from));
+
+        return new CompiledTemplate(source,
+                literals.toArray(new String[literals.size()]), names.toArray(new String[names.size()]));
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean hasPlaceholders() {
+        return names.length > 0;
+    }
+
+    /**
+     * Renders the template. Placeholders without value are left as they are.
+     */
+    public String render(final Map<String, ?> values) {
+        if (names.length == 0) return source;
+
+        StringBuilder buffer = BUFFER.get();
+        if (buffer.capacity() > MAX_BUFFER) {
+            buffer = new StringBuilder(4096);
+            BUFFER.set(buffer);
+        }
+        buffer.setLength(0);
+        buffer.ensureCapacity(length + names.length * 16);
+
+        render(values, buffer);
+        return buffer.toString();
+    }
+
+    public void render(final Map<String, ?> values, final StringBuilder out) {
+        for (int i = 0; i < names.length; i++) {
+            out.append(literals[i]);
+
+            final Object value = values != null ? values.get(names[i]) : null;
+            if (value != null) {
+                out.append(value);
+            } else {
+                out.append(OPEN).append(names[i]).append(CLOSE);
+            }
+        }
+        out.append(literals[names.length]);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.template;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.utils.EmailUtils;
+
+/**
+ * Bounded, least recently used cache of compiled classpath templates.
+ *
+ * @author miguel
+ *
+ */
+public class TemplateCache {
+
+    private final Map<String, CompiledTemplate> templates;
+
+    public TemplateCache(final int maxSize) {
+        super();
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be greater than zero");
+
+        this.templates = new LinkedHashMap<String, CompiledTemplate>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled template, reading and compiling it on first use.
+     */
+    public CompiledTemplate get(final String path) throws EmailException {
+        CompiledTemplate template;
+        synchronized (templates) {
+            template = templates.get(path);
+        }
+
+        if (template == null) {
+            // Loaded outside the lock, a concurrent first load only costs a second read
+            final String source = EmailUtils.readFileAsString(path);
+            if (source == null) throw new EmailException("template " + path + " not found or empty");
+
+            template = CompiledTemplate.compile(source);
+            synchronized (templates) {
+                templates.put(path, template);
+            }
+        }
+        return template;
+    }
+
+    public String render(final String path, final Map<String, ?> values) throws EmailException {
+        return get(path).render(values);
+    }
+
+    public void evict(final String path) {
+        synchronized (templates) {
+            templates.remove(path);
+        }
+    }
+
+    public void clear() {
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.throttle;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.pool.ServicePool.Lease;
+import mcaligares.modules.email.provider.ProviderRegistry;
+import mcaligares.modules.email.utils.EmailUtils;
+
+/**
+ * Paces sends with a {@link TokenBucket} per provider and account, so we stay
+ * under the provider limits instead of getting the account blocked.
+ * <p>
+ * Rates are read from the module config.properties:
+ * <pre>
+ * email.throttle.&lt;provider&gt;.permits  sends allowed every period
+ * email.throttle.&lt;provider&gt;.period   period in milliseconds
+ * email.throttle.&lt;provider&gt;.burst    sends allowed back-to-back, defaults to permits
+ * </pre>
+ * <code>default</code> as provider applies to providers without their own
+ * rate. Providers without any rate are not throttled, which is the case for
+ * every provider until a rate is set: a throttled send blocks the caller
+ * once the burst is spent.
+ *
+ * @author miguel
+ *
+ */
+public final class SendThrottle {
+
+    public static final String DEFAULT = "default";
+
+    private static final String THROTTLE_KEY = "email.throttle.";
+    private static final String PERMITS = ".permits";
+    private static final String PERIOD = ".period";
+    private static final String BURST = ".burst";
+
+    private static SendThrottle instance;
+
+    private final Map<String, Rate> rates = new ConcurrentHashMap<String, Rate>();
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+
+    private static final class Rate {
+        private final int permits;
+        private final long period;
+        private final int burst;
+
+        private Rate(int permits, long period, int burst) {
+            this.permits = permits;
+            this.period = period;
+            this.burst = burst;
+        }
+    }
+
+    public SendThrottle() {
+        super();
+    }
+
+    /**
+     * Throttle loaded from the module config.properties.
+     */
+    public static synchronized SendThrottle getDefault() {
+        if (instance == null) {
+            final Properties properties = new Properties();
+            InputStream input = null;
+            try {
+                input = SendThrottle.class.getClassLoader().getResourceAsStream(ProviderRegistry.CONFIG_FILE);
+                if (input != null) properties.load(input);
+            } catch (Exception e) {
+            } finally {
+                try {
+                    if (input != null) input.close();
+                } catch (Exception e) {}
+            }
+            instance = fromProperties(properties);
+        }
+        return instance;
+    }
+
+    public static SendThrottle fromProperties(final Properties properties) {
+        final SendThrottle throttle = new SendThrottle();
+
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(THROTTLE_KEY) || !key.endsWith(PERMITS)) continue;
+
+            final String provider = key.substring(THROTTLE_KEY.length(), key.length() - PERMITS.length());
+            final Integer permits = toInteger(properties.getProperty(key));
+            final Integer period = toInteger(properties.getProperty(THROTTLE_KEY + provider + PERIOD));
+            final Integer burst = toInteger(properties.getProperty(THROTTLE_KEY + provider + BURST));
+
+            if (permits != null && period != null) {
+                throttle.setRate(provider, permits, period, burst != null ? burst : permits);
+            }
+        }
+
+        return throttle;
+    }
+
+    /**
+     * Sets the rate of a provider, accounts already throttled start over
+     * with a full bucket.
+     */
+    public void setRate(final String provider, final int permits, final long period, final int burst) {
+        if (EmailUtils.isBlank(provider)) throw new IllegalArgumentException("provider cannot be blank");
+        if (permits < 1) throw new IllegalArgumentException("permits must be greater than zero");
+        if (period < 1) throw new IllegalArgumentException("period must be greater than zero");
+
+        final String name = provider.trim().toLowerCase();
+        rates.put(name, new Rate(permits, period, burst));
+        dropBuckets(name);
+    }
+
+    /**
+     * Stops throttling a provider.
+     */
+    public void removeRate(final String provider) {
+        if (provider == null) return;
+
+        final String name = provider.trim().toLowerCase();
+        rates.remove(name);
+        dropBuckets(name);
+    }
+
+    /**
+     * Blocks until the account is allowed to send one more message.
+     *
+     * @return milliseconds waited
+     */
+    public long acquire(final String provider, final String username) throws EmailException {
+        final long wait = reserve(provider, username);
+        await(provider, wait);
+        return TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+
+    /**
+     * Same as {@link #acquire(String, String)} for a loop holding a pooled
+     * connection. When the permit has to be waited for, the lease goes back
+     * to the pool first so other senders of the account can use it.
+     *
+     * @return milliseconds waited
+     */
+    public long acquire(final String provider, final String username, final Lease<?> lease)
+            throws EmailException {
+        final long wait = reserve(provider, username);
+        if (wait > 0) lease.release();
+        await(provider, wait);
+        return TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+
+    /**
+     * Takes the next permit of the account without waiting for it, so the
+     * caller can let go of what it holds before {@link #await(String, long)}.
+     *
+     * @return nanoseconds to wait before sending
+     */
+    public long reserve(final String provider, final String username) {
+        final TokenBucket bucket = getBucket(provider, username);
+        if (bucket == null) return 0;
+
+        final long wait = bucket.reserve();
+        acquired.incrementAndGet();
+        if (wait > 0) {
+            throttled.incrementAndGet();
+            waited.addAndGet(wait);
+        }
+        return wait;
+    }
+
+    /**
+     * Sleeps for the nanoseconds returned by {@link #reserve(String, String)}.
+     */
+    public void await(final String provider, final long wait) throws EmailException {
+        if (wait <= 0) return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("interrupted waiting for the send rate of " + provider, e);
+        }
+    }
+
+    /**
+     * @return the bucket of the account or null if its provider is not throttled
+     */
+    public TokenBucket getBucket(final String provider, final String username) {
+        final String name = provider != null ? provider.toLowerCase() : DEFAULT;
+        final String key = name + ":" + (username != null ? username.toLowerCase() : "");
+
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            Rate rate = rates.get(name);
+            if (rate == null) rate = rates.get(DEFAULT);
+            if (rate == null) return null;
+
+            bucket = new TokenBucket(rate.permits, rate.period, rate.burst);
+            final TokenBucket previous = buckets.putIfAbsent(key, bucket);
+            if (previous != null) bucket = previous;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return sends that went through the throttle
+     */
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /**
+     * @return sends that had to wait for a permit
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return milliseconds spent waiting for permits by every sender
+     */
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waited.get());
+    }
+
+    private void dropBuckets(final String name) {
+        for (Iterator<String> it = buckets.keySet().iterator(); it.hasNext();) {
+            final String key = it.next();
+            if (DEFAULT.equals(name) || key.startsWith(name + ":")) it.remove();
+        }
+    }
+
+    private static Integer toInteger(final String value) {
+        return EmailUtils.isNotBlank(value) ? Integer.valueOf(value.trim()) : null;
+    }
+
+}
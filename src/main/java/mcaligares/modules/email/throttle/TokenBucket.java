@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.throttle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket refilled with <code>permits</code> every <code>period</code>
+ * and holding up to <code>burst</code> tokens.
+ * <p>
+ * A permit is reserved under the lock and the caller sleeps outside of it, so
+ * concurrent senders queue up in arrival order without holding the bucket.
+ *
+ * @author miguel
+ *
+ */
+public final class TokenBucket {
+
+    private final int permits;
+    private final long period;
+    private final int burst;
+    private final double nanosPerToken;
+
+    private double tokens;
+    private long last;
+
+    /**
+     * @param permits tokens added every period
+     * @param period period in milliseconds
+     * @param burst max tokens stored, sends allowed back-to-back after idling
+     */
+    public TokenBucket(int permits, long period, int burst) {
+        super();
+        if (permits < 1) throw new IllegalArgumentException("permits must be greater than zero");
+        if (period < 1) throw new IllegalArgumentException("period must be greater than zero");
+
+        this.permits = permits;
+        this.period = period;
+        this.burst = burst > 0 ? burst : 1;
+        this.nanosPerToken = (double) TimeUnit.MILLISECONDS.toNanos(period) / permits;
+        this.tokens = this.burst;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Takes a permit, sleeping until it is available.
+     *
+     * @return nanoseconds waited
+     */
+    public long acquire() throws InterruptedException {
+        final long wait = reserve();
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        return wait;
+    }
+
+    /**
+     * Takes a permit if one is available right now.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) return false;
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Takes a permit without waiting for it, the balance may go negative.
+     *
+     * @return nanoseconds the caller must wait before using the permit
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens--;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * nanosPerToken);
+    }
+
+    public synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) / nanosPerToken);
+        last = now;
+    }
+
+}
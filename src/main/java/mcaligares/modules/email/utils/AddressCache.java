@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.utils;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Bounded, least recently used cache of parsed addresses, so repeated
+ * recipients are parsed once. The addresses are shared, they must not be
+ * modified.
+ *
+ * @author miguel
+ *
+ */
+public class AddressCache {
+
+    private static AddressCache instance = new AddressCache(1024);
+
+    private final Map<String, InternetAddress> addresses;
+
+    public AddressCache(final int maxSize) {
+        super();
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be greater than zero");
+
+        this.addresses = new LinkedHashMap<String, InternetAddress>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, InternetAddress> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static synchronized AddressCache getDefault() {
+        return instance;
+    }
+
+    public static synchronized void setDefault(final AddressCache cache) {
+        instance = cache;
+    }
+
+    /**
+     * Returns the parsed address, parsing it on first use. The instance is
+     * shared by every caller and must not be modified.
+     */
+    public InternetAddress get(final String address) throws AddressException {
+        InternetAddress parsed;
+        synchronized (addresses) {
+            parsed = addresses.get(address);
+        }
+
+        if (parsed == null) {
+            // Parsed outside the lock, a concurrent first use only parses twice
+            parsed = new InternetAddress(address);
+            synchronized (addresses) {
+                addresses.put(address, parsed);
+            }
+        }
+        return parsed;
+    }
+
+    public InternetAddress[] get(final List<String> addresses) throws AddressException {
+        final InternetAddress[] parsed = new InternetAddress[addresses.size()];
+        for (int i = 0; i < parsed.length; i++) parsed[i] = get(addresses.get(i));
+        return parsed;
+    }
+
+    public int size() {
+        synchronized (addresses) {
+            return addresses.size();
+        }
+    }
+
+}
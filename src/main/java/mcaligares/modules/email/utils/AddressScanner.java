@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mcaligares.modules.email.utils;
+
+/**
+ * Single pass email address scanner, it accepts exactly what the pattern
+ * <code>^\s*?(.+)@(.+?)\s*$</code> matches without compiling or running a
+ * regular expression and without allocating.
+ * <p>
+ * Spaces are the ones of <code>\s</code>, line terminators the ones
+ * <code>.</code> does not match.
+ *
+ * @author miguel
+ *
+ */
+public final class AddressScanner {
+
+    private AddressScanner() {
+        super();
+    }
+
+    public static boolean isValid(final CharSequence address) {
+        return scan(address) >= 0;
+    }
+
+    /**
+     * @return index of the @ separating local part and domain, -1 if the address is not valid
+     */
+    public static int scan(final CharSequence address) {
+        if (address == null) return -1;
+
+        final int length = address.length();
+        // First and last chars that are not spaces
+        int start = -1;
+        int end = -1;
+        // First line terminator after the leading spaces
+        int lineBreak = -1;
+        int ats = 0;
+        int firstAt = -1;
+        int secondAt = -1;
+        int lastAt = -1;
+
+        for (int i = 0; i < length; i++) {
+            final char c = address.charAt(i);
+            if (!isSpace(c)) {
+                if (start < 0) start = i;
+                end = i;
+            }
+            if (start >= 0 && lineBreak < 0 && isLineTerminator(c)) lineBreak = i;
+            if (c == '@') {
+                ats++;
+                if (firstAt < 0) {
+                    firstAt = i;
+                } else if (secondAt < 0) {
+                    secondAt = i;
+                }
+                lastAt = i;
+            }
+        }
+
+        // Only leading and trailing spaces may hold line terminators
+        if (ats == 0 || (lineBreak >= 0 && lineBreak <= end)) return -1;
+
+        // An @ right after a leading line terminator leaves an empty local
+        // part, one right before a trailing line terminator an empty domain
+        final boolean emptyLocal = firstAt == start
+                && (start == 0 || isLineTerminator(address.charAt(start - 1)));
+        final boolean emptyDomain = lastAt == end
+                && (end + 1 == length || isLineTerminator(address.charAt(end + 1)));
+
+        int usable = ats;
+        if (emptyLocal) usable--;
+        if (emptyDomain && !(emptyLocal && firstAt == lastAt)) usable--;
+        if (usable <= 0) return -1;
+
+        return emptyLocal ? secondAt : firstAt;
+    }
+
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+}
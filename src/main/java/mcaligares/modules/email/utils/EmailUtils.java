@@ -23,8 +23,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
+import mcaligares.modules.email.entity.Email;
 import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.exception.InvalidEmailException;
+import mcaligares.modules.email.exception.InvalidUsernameOrPasswordException;
 
 /**
  * 
@@ -33,8 +40,6 @@ import mcaligares.modules.email.exception.EmailException;
  */
 public final class EmailUtils {
 
-    private static final String EMAIL_PATTERN = "^\\s*?(.+)@(.+?)\\s*$";
-
     public static boolean isEmpty(final CharSequence cs) {
          return cs == null || cs.length() < 1;
     }
@@ -57,18 +62,66 @@ public final class EmailUtils {
         return !isBlank(cs);
     }
 
+    /**
+     * Same check as the pattern ^\s*?(.+)@(.+?)\s*$, see {@link AddressScanner}.
+     */
     public static boolean isValidEmail(final String email) {
-        if (isNotEmpty(email)) {
-            return email.matches(EMAIL_PATTERN);
+        return AddressScanner.isValid(email);
+    }
+
+    /**
+     * Checks a whole recipient list in one pass.
+     *
+     * @return the invalid addresses, empty if all are valid
+     */
+    public static List<String> getInvalidEmails(final Collection<String> emails) {
+        List<String> invalid = Collections.emptyList();
+        if (emails == null) return invalid;
+
+        for (String email : emails) {
+            if (AddressScanner.isValid(email)) continue;
+            if (invalid.isEmpty()) invalid = new ArrayList<String>();
+            invalid.add(email);
         }
-        return false;
+        return invalid;
     }
 
-    public static String getDomain(final String email) {
-        if (isValidEmail(email)) {
-            return email.substring(email.indexOf("@") + 1);
+    /**
+     * Checks everything a send needs from the email. Failures are
+     * {@link InvalidEmailException} or {@link InvalidUsernameOrPasswordException},
+     * sending the same email again can never succeed.
+     *
+     * @param checkTo false when the recipients are not taken from the email
+     */
+    public static void checkSend(final Email email, final boolean checkTo) throws EmailException {
+        if (email == null)
+            throw new NullPointerException("email object is null");
+
+        if (isBlank(email.getUsername()))
+            throw new InvalidUsernameOrPasswordException("username cannot be empty");
+
+        if (isBlank(email.getPassword()))
+            throw new InvalidUsernameOrPasswordException("password cannot be empty");
+
+        if (!isValidEmail(email.getFrom()))
+            throw new InvalidEmailException("Invalid email " + email.getFrom());
+
+        if (checkTo) {
+            if (email.getTo() == null || email.getTo().isEmpty())
+                throw new InvalidEmailException("Empty destination emails");
+
+            final List<String> invalid = getInvalidEmails(email.getTo());
+            if (!invalid.isEmpty()) throw new InvalidEmailException("Invalid email " + invalid.get(0));
         }
-        return null;
+
+        if (isBlank(email.getSubject()))
+            throw new InvalidEmailException("Subject cannot be empty");
+    }
+
+    public static String getDomain(final String email) {
+        // The @ the validation split at, not just the first one
+        final int at = AddressScanner.scan(email);
+        return at >= 0 ? email.substring(at + 1) : null;
     }
 
     public static String readFileAsString(final String filePath) throws EmailException {
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.utils.AddressCache;
+import mcaligares.modules.email.utils.AddressScanner;
+import mcaligares.modules.email.utils.EmailUtils;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class AddressScannerTest {
+
+    private static final String PATTERN = "^\\s*?(.+)@(.+?)\\s*$";
+    private static final char[] CHARS = { 'a', '@', ' ', '\n', '\r', '\u2028' };
+
+    @Test
+    public void acceptsWhatThePatternMatches() {
+        // Every string of up to six of these chars
+        for (int length = 0; length <= 6; length++) {
+            final int[] digits = new int[length];
+            while (true) {
+                final char[] chars = new char[length];
+                for (int i = 0; i < length; i++) chars[i] = CHARS[digits[i]];
+                final String address = new String(chars);
+                assertThat(address, AddressScanner.isValid(address), is(address.matches(PATTERN)));
+
+                int i = length - 1;
+                while (i >= 0 && ++digits[i] == CHARS.length) digits[i--] = 0;
+                if (i < 0) break;
+            }
+        }
+
+        assertThat(AddressScanner.scan(" user@gmail.com "), is(5));
+        assertThat(AddressScanner.scan("\n@user@gmail.com"), is(6));
+        assertThat(AddressScanner.isValid(null), is(false));
+
+        // The domain follows the same @
+        assertThat(EmailUtils.getDomain("\n@user@gmail.com"), is("gmail.com"));
+        assertThat(EmailUtils.getDomain("user@gmail.com"), is("gmail.com"));
+        assertThat(EmailUtils.getDomain("nobody"), is(nullValue()));
+    }
+
+    @Test
+    public void bulkValidationAndCache() throws Exception {
+        assertThat(EmailUtils.getInvalidEmails(Arrays.asList("a@b.com", "c@d.com")).isEmpty(), is(true));
+        assertThat(EmailUtils.getInvalidEmails(Arrays.asList("a@b.com", "nobody", "@d.com")),
+                is(Arrays.asList("nobody", "@d.com")));
+
+        AddressCache cache = new AddressCache(1);
+        assertThat(cache.get("a@b.com"), is(sameInstance(cache.get("a@b.com"))));
+        cache.get("c@d.com");
+        assertThat(cache.size(), is(1));
+
+        // Callers get copies of the cached addresses
+        Email email = new Email("user@gmail.com", "secret", "user@gmail.com", "to@gmail.com", "subject", "body");
+        email.getFromAddress().setPersonal("Someone else");
+        email.getToAddresses()[0].setAddress("other@gmail.com");
+        assertThat(email.getFromAddress().getPersonal(), is(nullValue()));
+        assertThat(email.getToAddresses()[0].getAddress(), is("to@gmail.com"));
+    }
+
+}
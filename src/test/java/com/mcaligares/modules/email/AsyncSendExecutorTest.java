@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.manager.EmailManager;
+import mcaligares.modules.email.manager.impl.AsyncSendExecutor;
+import mcaligares.modules.email.manager.impl.AsyncSendExecutor.RejectionPolicy;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class AsyncSendExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final List<String> senders = new CopyOnWriteArrayList<String>();
+
+    // Worker sends wait for the release, so the queue fills up
+    private final EmailManager emailManager = (EmailManager) Proxy.newProxyInstance(
+            EmailManager.class.getClassLoader(), new Class<?>[] { EmailManager.class }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    final String name = Thread.currentThread().getName();
+                    senders.add(name);
+                    if (name.startsWith("email-async")) {
+                        started.countDown();
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                    return null;
+                }
+            });
+
+    @Test
+    public void abortRejectsOnceTheQueueIsFull() throws Exception {
+        AsyncSendExecutor executor = createBusyExecutor(RejectionPolicy.ABORT);
+        CompletableFuture<Email> queued = executor.submit(createEmail(1));
+        assertThat(executor.getQueueSize(), is(1));
+
+        try {
+            executor.submit(createEmail(2));
+            fail("the queue holds a single send");
+        } catch (EmailException e) {
+            assertThat(executor.getQueueSize(), is(1));
+        }
+
+        release.countDown();
+        assertThat(queued.get(5, TimeUnit.SECONDS).getTo().get(0), is("to1@gmail.com"));
+        executor.shutdown();
+    }
+
+    @Test
+    public void callerRunsSendsOnTheCallingThread() throws Exception {
+        AsyncSendExecutor executor = createBusyExecutor(RejectionPolicy.CALLER_RUNS);
+        executor.submit(createEmail(1));
+
+        CompletableFuture<Email> overflow = executor.submit(createEmail(2));
+        assertThat(overflow.isDone(), is(true));
+        assertThat(senders.get(senders.size() - 1), is(Thread.currentThread().getName()));
+
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void discardOldestFailsTheQueuedSend() throws Exception {
+        AsyncSendExecutor executor = createBusyExecutor(RejectionPolicy.DISCARD_OLDEST);
+        CompletableFuture<Email> oldest = executor.submit(createEmail(1));
+        CompletableFuture<Email> newest = executor.submit(createEmail(2));
+
+        try {
+            oldest.get(5, TimeUnit.SECONDS);
+            fail("the oldest send was discarded");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(EmailException.class)));
+        }
+
+        release.countDown();
+        assertThat(newest.get(5, TimeUnit.SECONDS).getTo().get(0), is("to2@gmail.com"));
+        executor.shutdown();
+    }
+
+    @Test
+    public void invalidSettingsFallBackToTheDefaults() throws Exception {
+        release.countDown();
+        AsyncSendExecutor executor = AsyncSendExecutor.create(emailManager, -1, 0, 0, 0, "unknown");
+        assertThat(executor.getPolicy(), is(RejectionPolicy.ABORT));
+
+        assertThat(executor.submit(createEmail(1)).get(5, TimeUnit.SECONDS).getTo().get(0), is("to1@gmail.com"));
+        executor.shutdown();
+
+        executor = AsyncSendExecutor.create(emailManager, null, null, null, null, " caller_runs ");
+        assertThat(executor.getPolicy(), is(RejectionPolicy.CALLER_RUNS));
+        executor.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroKeepAliveIsRejected() {
+        new AsyncSendExecutor(emailManager, 1, 1, 1, 0, RejectionPolicy.ABORT);
+    }
+
+    /**
+     * One worker busy sending and room for one more send in the queue.
+     */
+    private AsyncSendExecutor createBusyExecutor(RejectionPolicy policy) throws Exception {
+        AsyncSendExecutor executor = new AsyncSendExecutor(emailManager, 1, 1, 1, 60000, policy);
+        executor.submit(createEmail(0));
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        return executor;
+    }
+
+    private static Email createEmail(int i) throws Exception {
+        return new Email("user@gmail.com", "secret", "user@gmail.com", "to" + i + "@gmail.com",
+                "subject " + i, "body " + i);
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import mcaligares.modules.email.store.AttachmentHandle;
+import mcaligares.modules.email.store.AttachmentStore;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class AttachmentStoreTest {
+
+    @Test
+    public void sameContentIsStoredOnce() throws Exception {
+        File directory = File.createTempFile("attachments", "");
+        directory.delete();
+        directory.deleteOnExit();
+
+        AttachmentStore store = new AttachmentStore(directory);
+        byte[] content = "invoice".getBytes("UTF-8");
+
+        AttachmentHandle first = store.put(new ByteArrayInputStream(content), "invoice.pdf");
+        AttachmentHandle second = store.put(new ByteArrayInputStream(content), "copy.pdf");
+
+        assertThat(first.getHash(), is(second.getHash()));
+        assertThat(first.getFile(), is(second.getFile()));
+        assertThat(first.getSize(), is((long) content.length));
+        assertThat(Files.readAllBytes(second.getFile().toPath()), is(content));
+        assertThat(new AttachmentStore(directory).getReferences(first.getHash()), is(2));
+
+        first.release();
+        first.release();
+        assertThat(second.getFile().isFile(), is(true));
+
+        second.release();
+        assertThat(second.getFile().exists(), is(false));
+        assertThat(store.getReferences(first.getHash()), is(0));
+    }
+
+    @Test
+    public void storesOfTheSameDirectoryShareTheCounts() throws Exception {
+        File directory = File.createTempFile("attachments", "");
+        directory.delete();
+        directory.deleteOnExit();
+
+        AttachmentStore store = new AttachmentStore(directory);
+        AttachmentStore other = new AttachmentStore(directory);
+        byte[] content = "invoice".getBytes("UTF-8");
+
+        AttachmentHandle first = store.put(new ByteArrayInputStream(content), "invoice.pdf");
+        assertThat(other.getReferences(first.getHash()), is(1));
+        AttachmentHandle second = other.put(new ByteArrayInputStream(content), "copy.pdf");
+        assertThat(store.getReferences(first.getHash()), is(2));
+
+        // Lost blob is stored again, the references still held are kept
+        first.getFile().delete();
+        AttachmentHandle third = store.put(new ByteArrayInputStream(content), "again.pdf");
+        assertThat(other.getReferences(first.getHash()), is(3));
+        assertThat(Files.readAllBytes(third.getFile().toPath()), is(content));
+
+        first.release();
+        other.release(first.getHash());
+        assertThat(store.getReferences(first.getHash()), is(1));
+        assertThat(second.getFile().isFile(), is(true));
+        third.release();
+        assertThat(second.getFile().exists(), is(false));
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.activation.DataSource;
+
+import mcaligares.modules.email.datasource.FileChannelDataSource;
+import mcaligares.modules.email.entity.Attachment;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class AttachmentTest {
+
+    @Test
+    public void streamClasspathAttachment() throws Exception {
+        Attachment attach = new Attachment("test_file.txt", "mcaligares/modules/email/attach/attachment.txt");
+        DataSource source = attach.getDataSource();
+
+        assertThat(source.getContentType(), notNullValue());
+        assertThat(read(source).length > 0, is(true));
+    }
+
+    @Test
+    public void streamBinaryBytes() throws Exception {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+
+        DataSource source = new Attachment("bytes.bin", data, "application/pdf").getDataSource();
+        assertThat(source.getContentType(), is("application/pdf"));
+        assertThat(Arrays.equals(read(source), data), is(true));
+
+        // Every stream starts from the beginning
+        assertThat(Arrays.equals(read(source), data), is(true));
+    }
+
+    @Test
+    public void streamMappedFile() throws Exception {
+        byte[] data = new byte[(int) FileChannelDataSource.DEFAULT_MAP_THRESHOLD + 1];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31);
+
+        File file = File.createTempFile("attachment", ".bin");
+        file.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(data);
+        output.close();
+
+        DataSource source = new Attachment("big.bin", file.getAbsolutePath()).getDataSource();
+        assertThat(source, instanceOf(FileChannelDataSource.class));
+        assertThat(Arrays.equals(read(source), data), is(true));
+    }
+
+    private static byte[] read(DataSource source) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream input = source.getInputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) output.write(buffer, 0, read);
+        input.close();
+        return output.toByteArray();
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+
+import mcaligares.modules.email.sync.Checkpoint;
+import mcaligares.modules.email.sync.CheckpointStore;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class CheckpointStoreTest {
+
+    @Test
+    public void checkpointSurvivesRestart() throws Exception {
+        File directory = File.createTempFile("checkpoints", "");
+        directory.delete();
+        directory.deleteOnExit();
+
+        CheckpointStore store = new CheckpointStore(directory);
+        assertThat(store.get("user@imap.gmail.com", "INBOX"), nullValue());
+
+        store.put("user@imap.gmail.com", "INBOX", new Checkpoint(7, 120));
+        store.put("user@imap.gmail.com", "[Gmail]/Sent Mail", new Checkpoint(9, 4));
+
+        Checkpoint checkpoint = new CheckpointStore(directory).get("USER@imap.gmail.com", "INBOX");
+        assertThat(checkpoint.getUidValidity(), is(7L));
+        assertThat(checkpoint.getLastUid(7), is(120L));
+
+        // The folder was recreated, its uids start over
+        assertThat(checkpoint.getLastUid(8), is(0L));
+
+        assertThat(new CheckpointStore(directory).get("user@imap.gmail.com", "[Gmail]/Sent Mail").getLastUid(), is(4L));
+    }
+
+    @Test
+    public void checkpointNeverMovesBack() throws Exception {
+        File directory = File.createTempFile("checkpoints", "");
+        directory.delete();
+        directory.deleteOnExit();
+
+        CheckpointStore store = new CheckpointStore(directory);
+        assertThat(store.putIfNewer("user@imap.gmail.com", "INBOX", new Checkpoint(7, 120)), is(true));
+
+        // A slower sync that started earlier finishes last
+        assertThat(store.putIfNewer("user@imap.gmail.com", "INBOX", new Checkpoint(7, 100)), is(false));
+        assertThat(store.putIfNewer("user@imap.gmail.com", "INBOX", new Checkpoint(6, 500)), is(false));
+        assertThat(new CheckpointStore(directory).get("user@imap.gmail.com", "INBOX").getLastUid(), is(120L));
+
+        assertThat(store.putIfNewer("user@imap.gmail.com", "INBOX", new Checkpoint(8, 3)), is(true));
+        assertThat(store.get("user@imap.gmail.com", "INBOX").getLastUid(8), is(3L));
+    }
+
+}
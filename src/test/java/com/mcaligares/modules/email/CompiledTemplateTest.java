@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.template.CompiledTemplate;
+import mcaligares.modules.email.template.TemplateCache;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class CompiledTemplateTest {
+
+    @Test
+    public void renderPlaceholders() {
+        CompiledTemplate template = CompiledTemplate.compile("<p>Hi ${name}, ${ count } new ${missing}</p>${");
+        assertThat(template.hasPlaceholders(), is(true));
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("name", "Miguel");
+        values.put("count", "3");
+
+        assertThat(template.render(values), is("<p>Hi Miguel, 3 new ${missing}</p>${"));
+        assertThat(template.render(null), is("<p>Hi ${name}, ${count} new ${missing}</p>${"));
+    }
+
+    @Test
+    public void renderWithoutPlaceholders() {
+        CompiledTemplate template = CompiledTemplate.compile("<p>plain</p>");
+        assertThat(template.hasPlaceholders(), is(false));
+        assertThat(template.render(null), is("<p>plain</p>"));
+    }
+
+    @Test
+    public void cacheIsBounded() throws EmailException {
+        TemplateCache cache = new TemplateCache(1);
+
+        CompiledTemplate template = cache.get("mcaligares/modules/email/template/emailTemplate.html");
+        assertThat(cache.get("mcaligares/modules/email/template/emailTemplate.html"), sameInstance(template));
+
+        cache.get("mcaligares/modules/email/attach/attachment.txt");
+        assertThat(cache.size(), is(1));
+    }
+
+}
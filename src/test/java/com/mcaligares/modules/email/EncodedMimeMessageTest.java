@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import mcaligares.modules.email.datasource.ByteBufferDataSource;
+import mcaligares.modules.email.mime.EncodedContent;
+import mcaligares.modules.email.mime.EncodedMimeMessage;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class EncodedMimeMessageTest {
+
+    @Test
+    public void writeEncodedContent() throws Exception {
+        Session session = Session.getInstance(new Properties());
+
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("this is a bulk email");
+        multipart.addBodyPart(text);
+        MimeBodyPart attach = new MimeBodyPart();
+        attach.setDataHandler(new DataHandler(new ByteBufferDataSource(data, "data.bin", "application/pdf")));
+        attach.setFileName("data.bin");
+        multipart.addBodyPart(attach);
+
+        EncodedContent content = EncodedContent.encode(session, multipart);
+
+        for (String recipient : Arrays.asList("one@gmail.com", "two@gmail.com")) {
+            MimeMessage message = new EncodedMimeMessage(session, content);
+            message.setSubject("bulk");
+            message.setRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            message.writeTo(output);
+
+            MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(output.toByteArray()));
+            assertThat(parsed.getSubject(), is("bulk"));
+            assertThat(parsed.getRecipients(Message.RecipientType.TO)[0].toString(), is(recipient));
+            assertThat(parsed.getMessageID(), notNullValue());
+
+            Multipart parts = (Multipart) parsed.getContent();
+            assertThat(parts.getCount(), is(2));
+            assertThat((String) parts.getBodyPart(0).getContent(), is("this is a bulk email"));
+            assertThat(parts.getBodyPart(1).getFileName(), is("data.bin"));
+            assertThat(Arrays.equals(read(parts.getBodyPart(1).getInputStream()), data), is(true));
+        }
+    }
+
+    @Test
+    public void encodedSubjectMatchesSetSubject() throws Exception {
+        Session session = Session.getInstance(new Properties());
+        String subject = "Informe de facturación del año, enviado una vez a cada destinatario de la lista";
+
+        MimeMessage expected = new MimeMessage(session);
+        expected.setSubject(subject);
+
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("body");
+        multipart.addBodyPart(text);
+
+        MimeMessage message = new EncodedMimeMessage(session, EncodedContent.encode(session, multipart));
+        message.setHeader(EncodedMimeMessage.SUBJECT, EncodedMimeMessage.encodeSubject(subject));
+
+        assertThat(message.getHeader(EncodedMimeMessage.SUBJECT, null),
+                is(expected.getHeader(EncodedMimeMessage.SUBJECT, null)));
+        assertThat(message.getSubject(), is(subject));
+    }
+
+    private static byte[] read(InputStream input) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) output.write(buffer, 0, read);
+        input.close();
+        return output.toByteArray();
+    }
+
+}
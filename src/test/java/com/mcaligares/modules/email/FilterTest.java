@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SubjectTerm;
+
+import mcaligares.modules.email.entity.Filter;
+import mcaligares.modules.email.entity.Filter.FilterDateType;
+import mcaligares.modules.email.entity.Filter.FilterType;
+import mcaligares.modules.email.entity.FilterPlan;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class FilterTest {
+
+    @Test
+    public void expressionCompilesIntoOneTerm() throws Exception {
+        Filter from = new Filter("boss@gmail.com", FilterType.FROM);
+        Filter subject = new Filter("report", FilterType.SUBJECT);
+        Filter to = new Filter("me@gmail.com", FilterType.TO);
+        Filter received = new Filter(new Date(0), new Date(1000), FilterType.RECEIVED_DATE);
+
+        Filter filter = Filter.and(from, Filter.and(Filter.or(subject, subject), Filter.not(Filter.not(to))),
+                received, from);
+
+        Filter normalized = filter.normalize();
+        assertThat(normalized.getType(), is(FilterType.AND));
+        assertThat(normalized.getFilters().size(), is(4));
+        assertThat(normalized.getFilters().get(1), is(subject));
+        assertThat(normalized.getFilters().get(2), is(to));
+
+        SearchTerm[] terms = ((AndTerm) filter.getSearchTerm()).getTerms();
+        assertThat(terms.length, is(5));
+        assertThat(terms[0], is(instanceOf(FromStringTerm.class)));
+        assertThat(terms[2], is(instanceOf(RecipientStringTerm.class)));
+
+        assertThat(Filter.or(from, to).getSearchTerm(), is(instanceOf(OrTerm.class)));
+        assertThat(Filter.and(from).getKey(), is(not(Filter.or(from).getKey())));
+        assertThat(new Filter(new Date(0), FilterType.SENT_DATE, FilterDateType.AFTER).normalize().getKey(),
+                is(new Filter(new Date(0), FilterType.SENT_DATE, FilterDateType.AFTER).getKey()));
+    }
+
+    @Test
+    public void planSplitsCriteriaByCost() throws Exception {
+        Filter received = new Filter(new Date(0), FilterType.RECEIVED_DATE, FilterDateType.AFTER);
+        Filter subject = new Filter("report", FilterType.SUBJECT);
+        Filter body = new Filter("total", FilterType.BODY);
+
+        FilterPlan plan = Filter.and(body, subject, received).getPlan();
+        assertThat(plan.getCheapTerm(), is(notNullValue()));
+        assertThat(plan.getHeaderTerm(), is(instanceOf(SubjectTerm.class)));
+        assertThat(plan.getBodyTerm(), is(instanceOf(BodyTerm.class)));
+
+        // An OR is as expensive as its most expensive operand
+        plan = Filter.and(received, Filter.or(subject, new Filter(1))).getPlan();
+        assertThat(plan.getHeaderTerm(), is(instanceOf(OrTerm.class)));
+        assertThat(plan.getBodyTerm(), is(nullValue()));
+
+        plan = subject.getPlan();
+        assertThat(plan.getCheapTerm(), is(nullValue()));
+        assertThat(plan.getHeaderTerm(), is(instanceOf(SubjectTerm.class)));
+    }
+
+    @Test
+    public void windowsSelectMessageNumbers() throws Exception {
+        assertThat(Filter.latest(50).getWindow(1000), is(new int[] { 951, 1000 }));
+        assertThat(Filter.latest(50, 50).getWindow(1000), is(new int[] { 901, 950 }));
+        assertThat(Filter.latest(50).getWindow(20), is(new int[] { 1, 20 }));
+        assertThat(Filter.range(10, 30).getWindow(20), is(new int[] { 10, 20 }));
+
+        // Past the first message, nothing
+        int[] window = Filter.latest(10, 30).getWindow(20);
+        assertThat(window[0] > window[1], is(true));
+
+        FilterPlan plan = Filter.and(Filter.latest(50), new Filter("report", FilterType.SUBJECT)).getPlan();
+        assertThat(plan.getWindows().size(), is(1));
+        assertThat(plan.getCheapTerm(), is(nullValue()));
+        assertThat(plan.getHeaderTerm(), is(instanceOf(SubjectTerm.class)));
+    }
+
+    @Test
+    public void windowsInsideAnOrAreMatchedLocally() throws Exception {
+        Filter received = new Filter(new Date(0), FilterType.RECEIVED_DATE, FilterDateType.AFTER);
+        Filter subject = new Filter("report", FilterType.SUBJECT);
+
+        // The server cannot search the OR, so it stays out of every server group
+        FilterPlan plan = Filter.and(received, Filter.or(Filter.latest(2), subject)).getPlan();
+        assertThat(plan.getLocal().size(), is(1));
+        assertThat(plan.getCheapTerm(), is(not(instanceOf(OrTerm.class))));
+        assertThat(plan.getHeaderTerm(), is(nullValue()));
+
+        plan = Filter.not(Filter.range(1, 3)).getPlan();
+        assertThat(plan.getLocal().size(), is(1));
+        assertThat(plan.getCheapTerm(), is(nullValue()));
+    }
+
+    @Test
+    public void boundWindowTermsDoNotReadTheFolder() throws Exception {
+        Message ninth = new MimeMessage(Session.getInstance(new Properties())) {
+            {
+                setMessageNumber(9);
+            }
+        };
+
+        // Without a folder to ask only a term bound to the count can match it
+        assertThat(Filter.latest(2).getSearchTerm(10).match(ninth), is(true));
+        assertThat(Filter.latest(2).getSearchTerm().match(ninth), is(false));
+        assertThat(Filter.or(Filter.range(1, 3), Filter.latest(2)).getSearchTerm(10).match(ninth), is(true));
+        assertThat(Filter.not(Filter.latest(2)).getSearchTerm(10).match(ninth), is(false));
+
+        assertThat(Filter.or(Filter.latest(2), new Filter("report", FilterType.SUBJECT)).hasWindowTerm(), is(true));
+        assertThat(new Filter("report", FilterType.SUBJECT).hasWindowTerm(), is(false));
+    }
+
+}
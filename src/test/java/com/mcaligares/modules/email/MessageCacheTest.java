@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mcaligares.modules.email.cache.CachedFolder;
+import mcaligares.modules.email.cache.MessageCache;
+import mcaligares.modules.email.entity.Message;
+import mcaligares.modules.email.store.AttachmentHandle;
+import mcaligares.modules.email.store.AttachmentStore;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class MessageCacheTest {
+
+    @Test
+    public void messagesSurviveReopenUntilUidValidityChanges() throws Exception {
+        File directory = File.createTempFile("cache", "");
+        directory.delete();
+        directory.deleteOnExit();
+
+        AttachmentStore store = new AttachmentStore(new File(directory, "attachments"));
+        AttachmentHandle attach = store.put(new ByteArrayInputStream("invoice".getBytes("UTF-8")), "invoice.pdf");
+        List<AttachmentHandle> attaches = new ArrayList<AttachmentHandle>();
+        attaches.add(attach);
+
+        CachedFolder folder = new MessageCache(directory, store, 1024 * 1024, 0).getFolder("user@gmail.com", "INBOX");
+        folder.validate(7, 1, 42);
+        folder.put(42, new Message("from@gmail.com", "subject", "content", Arrays.asList("user@gmail.com"), attaches));
+        folder.putResult("all", new long[] { 42 });
+        folder.save();
+        attach.release();
+
+        folder = new MessageCache(directory, store, 1024 * 1024, 0).getFolder("user@gmail.com", "INBOX");
+        assertThat(folder.validate(7, 1, 42), is(true));
+        assertThat(folder.getResult("all")[0], is(42L));
+
+        Message cached = folder.get(42);
+        assertThat(cached.getSubject(), is("subject"));
+        assertThat(cached.getTo().get(0), is("user@gmail.com"));
+        assertThat(cached.getAttaches().get(0).getName(), is("invoice.pdf"));
+        cached.getAttaches().get(0).release();
+
+        // New mail keeps the messages, not the results
+        assertThat(folder.validate(7, 2, 43), is(false));
+        assertThat(folder.getResult("all"), is(nullValue()));
+        assertThat(folder.contains(42), is(true));
+
+        // Reassigned uids drop everything, the attachment with them
+        folder.validate(8, 2, 43);
+        assertThat(folder.contains(42), is(false));
+        assertThat(store.getReferences(attach.getHash()), is(0));
+    }
+
+    @Test
+    public void damagedRecordsAreFetchedAgain() throws Exception {
+        File directory = File.createTempFile("cache", "");
+        directory.delete();
+        directory.deleteOnExit();
+
+        AttachmentStore store = new AttachmentStore(new File(directory, "attachments"));
+        CachedFolder folder = new MessageCache(directory, store, 1024 * 1024, 0).getFolder("user@gmail.com", "INBOX");
+        folder.validate(7, 1, 42);
+        folder.put(42, new Message("from@gmail.com", "subject", "content", null, null));
+        folder.save();
+
+        // Flip the last byte of the record
+        File data = null;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".dat")) data = file;
+        }
+        RandomAccessFile file = new RandomAccessFile(data, "rw");
+        try {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        folder = new MessageCache(directory, store, 1024 * 1024, 0).getFolder("user@gmail.com", "INBOX");
+        assertThat(folder.contains(42), is(true));
+        assertThat(folder.get(42), is(nullValue()));
+        assertThat(folder.contains(42), is(false));
+    }
+
+}
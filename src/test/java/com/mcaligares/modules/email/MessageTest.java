@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import mcaligares.modules.email.entity.Message;
+import mcaligares.modules.email.store.AttachmentHandle;
+import mcaligares.modules.email.store.AttachmentStore;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class MessageTest {
+
+    @Test
+    public void contentIsLoadedOnDemand() throws Exception {
+        MimeMessage mime = new MimeMessage(Session.getInstance(new Properties()));
+        mime.setFrom(new InternetAddress("from@gmail.com"));
+        mime.setSubject("subject");
+        mime.setText("body");
+
+        Message message = new Message(mime);
+        assertThat(message.getFrom(), is("from@gmail.com"));
+        assertThat(message.getSubject(), is("subject"));
+        assertThat(message.isLoaded(), is(false));
+
+        assertThat(message.getContent(), is("body"));
+        assertThat(message.isLoaded(), is(true));
+        assertThat(message.hasError(), is(false));
+        assertThat(message.hasAttaches(), is(false));
+    }
+
+    @Test
+    public void detachedBodyIsAnErrorNotAnEmptyMessage() throws Exception {
+        MimeMessage mime = new MimeMessage(Session.getInstance(new Properties()));
+        mime.setSubject("subject");
+        mime.setText("body");
+
+        Message message = new Message(mime);
+        message.detach();
+        assertThat(message.getSubject(), is("subject"));
+        assertThat(message.hasError(), is(true));
+
+        try {
+            message.getContent();
+            fail("detached body must not be read");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause(), is(message.getError()));
+        }
+    }
+
+    @Test
+    public void detachedBodyIsReadThroughTheLoader() throws Exception {
+        final MimeMessage mime = new MimeMessage(Session.getInstance(new Properties()));
+        mime.setSubject("subject");
+        mime.setText("body");
+
+        final AtomicInteger loads = new AtomicInteger();
+        Message message = new Message(mime);
+        message.detach(new Message.Loader() {
+            public void load(Message message) throws Exception {
+                loads.incrementAndGet();
+                message.read(mime);
+            }
+        });
+        assertThat(message.isLoaded(), is(false));
+        assertThat(loads.get(), is(0));
+
+        assertThat(message.getContent(), is("body"));
+        assertThat(message.getContent(), is("body"));
+        assertThat(message.isLoaded(), is(true));
+        assertThat(loads.get(), is(1));
+    }
+
+    @Test
+    public void releaseDropsTheAttachmentReferences() throws Exception {
+        File directory = File.createTempFile("attachments", "");
+        directory.delete();
+        directory.deleteOnExit();
+
+        AttachmentStore store = new AttachmentStore(directory);
+        AttachmentHandle attach = store.put(new ByteArrayInputStream("invoice".getBytes("UTF-8")), "invoice.pdf");
+        Message message = new Message("from@gmail.com", "subject", "body", null,
+                new ArrayList<AttachmentHandle>(Arrays.asList(attach)));
+
+        message.release();
+        assertThat(attach.isReleased(), is(true));
+        assertThat(attach.getFile().exists(), is(false));
+
+        // Nothing read, nothing to release
+        new Message().release();
+    }
+
+    @Test
+    public void failedLoaderIsAnError() throws Exception {
+        MimeMessage mime = new MimeMessage(Session.getInstance(new Properties()));
+        mime.setText("body");
+
+        final Exception failure = new Exception("expunged");
+        Message message = new Message(mime);
+        message.detach(new Message.Loader() {
+            public void load(Message message) throws Exception {
+                throw failure;
+            }
+        });
+
+        assertThat(message.getError(), is(failure));
+        try {
+            message.getContent();
+            fail("failed body must not be read");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause(), is((Throwable) failure));
+        }
+    }
+
+}
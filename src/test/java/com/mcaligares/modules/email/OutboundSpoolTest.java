@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+import mcaligares.modules.email.entity.Email;
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.exception.InvalidEmailException;
+import mcaligares.modules.email.manager.EmailManager;
+import mcaligares.modules.email.spool.OutboundSpool;
+import mcaligares.modules.email.spool.SpoolListener;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class OutboundSpoolTest {
+
+    private final List<Email> sent = new CopyOnWriteArrayList<Email>();
+
+    private final EmailManager emailManager = (EmailManager) Proxy.newProxyInstance(
+            EmailManager.class.getClassLoader(), new Class<?>[] { EmailManager.class }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("send".equals(method.getName())) sent.add((Email) args[0]);
+                    return null;
+                }
+            });
+
+    @Test
+    public void pendingEmailsSurviveRestart() throws Exception {
+        File directory = createDirectory();
+
+        OutboundSpool spool = new OutboundSpool(directory, emailManager, 1);
+        for (int i = 0; i < 3; i++) spool.enqueue(createEmail(i));
+        spool.close();
+
+        // Workers were never started, everything is still pending
+        spool = new OutboundSpool(directory, emailManager, 1);
+        assertThat(spool.getPending(), is(3));
+
+        spool.start();
+        waitUntilDelivered(spool);
+        spool.close();
+
+        assertThat(sent.size(), is(3));
+        assertThat(sent.get(0).getTo().get(0), is("to0@gmail.com"));
+        assertThat(new OutboundSpool(directory, emailManager, 1).getPending(), is(0));
+    }
+
+    @Test
+    public void deliveredSegmentsAreCompacted() throws Exception {
+        File directory = createDirectory();
+
+        OutboundSpool spool = new OutboundSpool(directory, emailManager, 2, 1024, 1);
+        spool.start();
+        for (int i = 0; i < 100; i++) spool.enqueue(createEmail(i));
+        waitUntilDelivered(spool);
+
+        // Roll a few more segments so the delivered ones get dropped
+        for (int i = 0; i < 10; i++) spool.enqueue(createEmail(i));
+        waitUntilDelivered(spool);
+        spool.close();
+
+        assertThat(sent.size(), is(110));
+        assertThat(directory.listFiles().length < 10, is(true));
+    }
+
+    @Test
+    public void runtimeFailuresDoNotStopTheWorker() throws Exception {
+        final List<Long> failed = new CopyOnWriteArrayList<Long>();
+        EmailManager broken = (EmailManager) Proxy.newProxyInstance(
+                EmailManager.class.getClassLoader(), new Class<?>[] { EmailManager.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        Email email = (Email) args[0];
+                        if (email.getTo().get(0).startsWith("to0")) throw new IllegalStateException("broken");
+                        sent.add(email);
+                        return null;
+                    }
+                });
+
+        OutboundSpool spool = new OutboundSpool(createDirectory(), broken, 1, 1024, 1);
+        spool.setListener(new SpoolListener() {
+            public void delivered(long id, Email email) {
+                throw new IllegalStateException("broken listener");
+            }
+
+            public void failed(long id, Email email, EmailException error) {
+                failed.add(id);
+                throw new IllegalStateException("broken listener");
+            }
+
+            public void journalFailed(long id, EmailException error) {}
+        });
+        spool.start();
+        for (int i = 0; i < 3; i++) spool.enqueue(createEmail(i));
+        waitUntilDelivered(spool);
+        spool.close();
+
+        assertThat(failed.size(), is(1));
+        assertThat(sent.size(), is(2));
+    }
+
+    @Test
+    public void partialDeliveryIsNotRetried() throws Exception {
+        final List<Email> attempts = new CopyOnWriteArrayList<Email>();
+        final List<EmailException> failed = new CopyOnWriteArrayList<EmailException>();
+        EmailManager partial = (EmailManager) Proxy.newProxyInstance(
+                EmailManager.class.getClassLoader(), new Class<?>[] { EmailManager.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        attempts.add((Email) args[0]);
+                        // One recipient got it, the other was rejected
+                        throw new EmailException(new SendFailedException("partial",
+                                null, new Address[] { new InternetAddress("to0@gmail.com") },
+                                null, new Address[] { new InternetAddress("rejected@gmail.com") }));
+                    }
+                });
+
+        OutboundSpool spool = new OutboundSpool(createDirectory(), partial, 1, 1024, 10);
+        spool.setListener(new SpoolListener() {
+            public void delivered(long id, Email email) {}
+
+            public void failed(long id, Email email, EmailException error) {
+                failed.add(error);
+            }
+
+            public void journalFailed(long id, EmailException error) {}
+        });
+        spool.start();
+        spool.enqueue(createEmail(0));
+        waitUntilDelivered(spool);
+        spool.close();
+
+        assertThat(attempts.size(), is(1));
+        assertThat(failed.size(), is(1));
+        assertThat(failed.get(0).getCause(), is(instanceOf(SendFailedException.class)));
+    }
+
+    @Test
+    public void invalidEmailsAreRejectedBeforeTheJournal() throws Exception {
+        OutboundSpool spool = new OutboundSpool(createDirectory(), emailManager, 1);
+
+        Email email = createEmail(0);
+        email.setSubject(" ");
+        try {
+            spool.enqueue(email);
+            fail("an email without subject cannot be sent");
+        } catch (InvalidEmailException e) {
+            assertThat(spool.getPending(), is(0));
+        }
+        spool.close();
+    }
+
+    private static Email createEmail(int i) throws Exception {
+        Email email = new Email("user@gmail.com", "secret", "user@gmail.com", "to" + i + "@gmail.com",
+                "subject " + i, "body " + i);
+        email.addTemplateValue("name", "value " + i);
+        return email;
+    }
+
+    private static void waitUntilDelivered(OutboundSpool spool) throws InterruptedException {
+        for (int i = 0; i < 100 && spool.getPending() > 0; i++) Thread.sleep(50);
+        assertThat(spool.getPending(), is(0));
+    }
+
+    private static File createDirectory() throws Exception {
+        File directory = File.createTempFile("spool", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+}
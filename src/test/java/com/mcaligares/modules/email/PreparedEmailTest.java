@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import mcaligares.modules.email.entity.PreparedEmail;
+import mcaligares.modules.email.mime.EncodedContent;
+import mcaligares.modules.email.session.AccountConfig;
+import mcaligares.modules.email.session.AccountKey;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class PreparedEmailTest {
+
+    @Test
+    public void everySendGetsItsOwnMessage() throws Exception {
+        AccountKey key = new AccountKey("smtp", "user@gmail.com", "secret", "user@gmail.com", false);
+        AccountConfig config = new AccountConfig(key, "smtp.gmail.com", 587, new Properties());
+
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("prepared once");
+        multipart.addBodyPart(text);
+        EncodedContent content = EncodedContent.encode(config.getSession(), multipart);
+
+        InternetAddress[] to = { new InternetAddress("one@gmail.com"), new InternetAddress("two@gmail.com") };
+        PreparedEmail prepared = new PreparedEmail(config, "gmail", "user@gmail.com",
+                new InternetAddress("user@gmail.com"), to, "A\u00f1o nuevo", content);
+
+        // Not affected by changes to the given array
+        to[0] = new InternetAddress("other@gmail.com");
+        assertThat(prepared.getTo()[0].toString(), is("one@gmail.com"));
+
+        MimeMessage first = parse(config.getSession(), prepared.createMessage());
+        MimeMessage second = parse(config.getSession(), prepared.createMessage());
+
+        // Encoded as setSubject does, with the default charset
+        MimeMessage plain = new MimeMessage(config.getSession());
+        plain.setSubject("A\u00f1o nuevo");
+        assertThat(first.getHeader("Subject")[0], is(plain.getHeader("Subject")[0]));
+        assertThat(first.getFrom()[0].toString(), is("user@gmail.com"));
+        assertThat(first.getRecipients(Message.RecipientType.TO).length, is(2));
+        assertThat(((MimeMultipart) first.getContent()).getBodyPart(0).getContent(), is((Object) "prepared once"));
+        assertThat(first.getMessageID(), is(not(second.getMessageID())));
+    }
+
+    private static MimeMessage parse(Session session, MimeMessage message) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        message.writeTo(output);
+        return new MimeMessage(session, new ByteArrayInputStream(output.toByteArray()));
+    }
+
+}
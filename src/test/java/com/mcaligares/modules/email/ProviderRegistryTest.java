@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.exception.EmailServerNotFoundException;
+import mcaligares.modules.email.provider.Provider;
+import mcaligares.modules.email.provider.ProviderRegistry;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class ProviderRegistryTest {
+
+    @Test
+    public void resolveConfiguredProviders() throws EmailException {
+        ProviderRegistry registry = ProviderRegistry.getDefault();
+
+        assertThat(registry.resolve("gmail.com").getSmtpServer(), is("smtp.googlemail.com"));
+        assertThat(registry.resolve("gmail.com").getSmtpPort(), is(587));
+        assertThat(registry.resolve("yahoo.com.ar").getImapServer(), is("imap.mail.yahoo.com"));
+        assertThat(registry.resolve("Hotmail.com").getSmtpServer(), is("smtp.live.com"));
+
+        // outlook is an alias of hotmail
+        assertThat(registry.resolve("outlook.com").getName(), is("hotmail"));
+    }
+
+    @Test(expected = EmailServerNotFoundException.class)
+    public void resolveUnknownDomain() throws EmailException {
+        new ProviderRegistry().resolve("example.com");
+    }
+
+    @Test
+    public void registerCorporateDomain() throws EmailException {
+        ProviderRegistry registry = new ProviderRegistry();
+        assertThat(registry.find("mycompany.com"), nullValue());
+
+        registry.registerDomain("mycompany.com", new Provider("relay", "relay.mycompany.com", 25, null));
+        assertThat(registry.resolve("mycompany.com").getSmtpServer(), is("relay.mycompany.com"));
+        assertThat(registry.find("other.mycompany.com"), nullValue());
+
+        registry.register(new Provider("corp", "smtp.corp.net", 587, "imap.corp.net"), "corp");
+        assertThat(registry.resolve("eu.corp.net").getImapServer(), is("imap.corp.net"));
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import mcaligares.modules.email.throttle.SendThrottle;
+import mcaligares.modules.email.throttle.TokenBucket;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class SendThrottleTest {
+
+    @Test
+    public void bucketAllowsBurstThenPaces() {
+        TokenBucket bucket = new TokenBucket(1, 1000, 2);
+
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(0L));
+
+        long wait = TimeUnit.NANOSECONDS.toMillis(bucket.reserve());
+        assertThat(wait > 900 && wait <= 1000, is(true));
+        assertThat(bucket.tryAcquire(), is(false));
+    }
+
+    @Test
+    public void ratesPerProviderAndAccount() {
+        Properties properties = new Properties();
+        properties.setProperty("email.throttle.gmail.permits", "5");
+        properties.setProperty("email.throttle.gmail.period", "1000");
+        properties.setProperty("email.throttle.gmail.burst", "1");
+
+        SendThrottle throttle = SendThrottle.fromProperties(properties);
+
+        assertThat(throttle.getBucket("yahoo", "someone"), nullValue());
+        assertThat(throttle.getBucket("gmail", "someone").getBurst(), is(1));
+        assertThat(throttle.getBucket("gmail", "someone"), sameInstance(throttle.getBucket("GMAIL", "Someone")));
+        assertThat(throttle.getBucket("gmail", "someone"), not(sameInstance(throttle.getBucket("gmail", "other"))));
+
+        throttle.setRate(SendThrottle.DEFAULT, 1, 1000, 1);
+        assertThat(throttle.getBucket("yahoo", "someone").getPermits(), is(1));
+    }
+
+    @Test
+    public void reservedPermitsAreCountedBeforeTheWait() throws Exception {
+        SendThrottle throttle = new SendThrottle();
+        throttle.setRate("gmail", 1, 1000, 1);
+
+        assertThat(throttle.reserve("gmail", "someone"), is(0L));
+        long wait = throttle.reserve("gmail", "someone");
+        assertThat(wait > 0, is(true));
+        assertThat(throttle.getAcquiredCount(), is(2L));
+        assertThat(throttle.getThrottledCount(), is(1L));
+
+        assertThat(throttle.reserve("yahoo", "someone"), is(0L));
+        throttle.await("gmail", 0);
+    }
+
+}
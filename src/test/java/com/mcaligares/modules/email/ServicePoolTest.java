@@ -0,0 +1,354 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Provider;
+import javax.mail.Service;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.URLName;
+
+import mcaligares.modules.email.exception.EmailException;
+import mcaligares.modules.email.manager.EmailManager;
+import mcaligares.modules.email.pool.PoolKey;
+import mcaligares.modules.email.pool.ServicePool;
+import mcaligares.modules.email.pool.ServicePool.Lease;
+import mcaligares.modules.email.pool.StorePool;
+import mcaligares.modules.email.session.AccountConfig;
+import mcaligares.modules.email.session.AccountKey;
+import mcaligares.modules.email.throttle.SendThrottle;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class ServicePoolTest {
+
+    private static final Session SESSION = Session.getInstance(new Properties());
+
+    private static class FakeService extends Service {
+        private final PoolKey key;
+
+        FakeService(PoolKey key) {
+            super(SESSION, null);
+            this.key = key;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    }
+
+    private static class FakePool extends ServicePool<FakeService> {
+        FakePool() {
+            super(2, 8, 0, 1000);
+        }
+
+        @Override
+        protected FakeService create(PoolKey key, Session session) throws Exception {
+            return new FakeService(key);
+        }
+    }
+
+    /**
+     * Accepts only the password "secret"
+     */
+    public static class FakeStore extends Store {
+        public FakeStore(Session session, URLName url) {
+            super(session, url);
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user, String password) {
+            return "secret".equals(password);
+        }
+
+        @Override
+        public Folder getDefaultFolder() {
+            return null;
+        }
+
+        @Override
+        public Folder getFolder(String name) {
+            return new FakeFolder(this, name);
+        }
+
+        @Override
+        public Folder getFolder(URLName url) {
+            return null;
+        }
+    }
+
+    private static class FakeFolder extends Folder {
+        private final String name;
+        private boolean open;
+
+        FakeFolder(Store store, String name) {
+            super(store);
+            this.name = name;
+        }
+
+        @Override
+        public void open(int mode) {
+            open = true;
+        }
+
+        @Override
+        public void close(boolean expunge) {
+            open = false;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getFullName() {
+            return name;
+        }
+
+        @Override
+        public Folder getParent() {
+            return null;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public Folder[] list(String pattern) {
+            return new Folder[0];
+        }
+
+        @Override
+        public char getSeparator() {
+            return '/';
+        }
+
+        @Override
+        public int getType() {
+            return HOLDS_MESSAGES;
+        }
+
+        @Override
+        public boolean create(int type) {
+            return false;
+        }
+
+        @Override
+        public boolean hasNewMessages() {
+            return false;
+        }
+
+        @Override
+        public Folder getFolder(String name) {
+            return null;
+        }
+
+        @Override
+        public boolean delete(boolean recurse) {
+            return false;
+        }
+
+        @Override
+        public boolean renameTo(Folder folder) {
+            return false;
+        }
+
+        @Override
+        public Flags getPermanentFlags() {
+            return new Flags();
+        }
+
+        @Override
+        public int getMessageCount() {
+            // Only the archive is large
+            return "Archive".equals(name) ? 5000 : 10;
+        }
+
+        @Override
+        public Message getMessage(int msgnum) {
+            return null;
+        }
+
+        @Override
+        public void appendMessages(Message[] msgs) {
+        }
+
+        @Override
+        public Message[] expunge() {
+            return new Message[0];
+        }
+    }
+
+    @Test
+    public void foldersAreClosedWhenTheStoreGoesBack() throws Exception {
+        StorePool pool = new StorePool(1, 8, 0, 1000);
+        AccountConfig owner = fakeStoreConfig("secret");
+
+        Store store = pool.borrow(owner.getPoolKey(), owner.getSession());
+        Folder inbox = pool.getFolder(store, "INBOX");
+        assertThat(inbox.isOpen(), is(true));
+        assertThat(pool.getFolder(store, "INBOX"), is(sameInstance(inbox)));
+        pool.release(owner.getPoolKey(), store);
+
+        // Its cached messages are dropped, the next borrow selects it again
+        assertThat(inbox.isOpen(), is(false));
+        store = pool.borrow(owner.getPoolKey(), owner.getSession());
+        Folder again = pool.getFolder(store, "INBOX");
+        assertThat(again, is(not(sameInstance(inbox))));
+        assertThat(again.isOpen(), is(true));
+        pool.release(owner.getPoolKey(), store);
+        pool.close();
+    }
+
+    @Test
+    public void smallFoldersStayOpenBetweenBorrows() throws Exception {
+        StorePool pool = new StorePool(1, 8, 0, 1000, 1, 1000);
+        AccountConfig owner = fakeStoreConfig("secret");
+
+        Store store = pool.borrow(owner.getPoolKey(), owner.getSession());
+        Folder inbox = pool.getFolder(store, "INBOX");
+        Folder sent = pool.getFolder(store, "Sent");
+        pool.release(owner.getPoolKey(), store);
+
+        // Only the most recently used one is kept
+        assertThat(inbox.isOpen(), is(false));
+        assertThat(sent.isOpen(), is(true));
+        store = pool.borrow(owner.getPoolKey(), owner.getSession());
+        assertThat(pool.getFolder(store, "Sent"), is(sameInstance(sent)));
+
+        // Too large to keep its messages around
+        Folder archive = pool.getFolder(store, "Archive");
+        pool.release(owner.getPoolKey(), store);
+        assertThat(archive.isOpen(), is(false));
+        assertThat(sent.isOpen(), is(true));
+
+        // Closed with the store
+        pool.close();
+        assertThat(sent.isOpen(), is(false));
+    }
+
+    @Test
+    public void wrongPasswordLogsInAgainAndFails() throws Exception {
+        StorePool pool = new StorePool(2, 8, 0, 1000);
+        AccountConfig owner = fakeStoreConfig("secret");
+        AccountConfig intruder = fakeStoreConfig("guess");
+
+        Store store = pool.borrow(owner.getPoolKey(), owner.getSession());
+        assertThat(store.isConnected(), is(true));
+        pool.release(owner.getPoolKey(), store);
+
+        try {
+            pool.borrow(intruder.getPoolKey(), intruder.getSession());
+            throw new AssertionError("borrowed a store with a wrong password");
+        } catch (EmailException e) {
+            // Fresh login, rejected
+        }
+
+        assertThat(pool.borrow(owner.getPoolKey(), owner.getSession()), is(sameInstance(store)));
+        pool.close();
+    }
+
+    private static AccountConfig fakeStoreConfig(String password) {
+        Properties properties = new Properties();
+        properties.setProperty(EmailManager.MAIL_STORE_PROTOCOL, "fake");
+        properties.setProperty(EmailManager.MAIL_IMAP_USER, "user@gmail.com");
+
+        AccountKey key = new AccountKey("imaps", "user@gmail.com", password, "user@gmail.com", false);
+        AccountConfig config = new AccountConfig(key, "imap.gmail.com", 993, properties);
+        config.getSession().addProvider(new Provider(Provider.Type.STORE, "fake", FakeStore.class.getName(),
+                "test", "1"));
+        return config;
+    }
+
+    @Test
+    public void connectionsAreSharedOnlyWithTheSameCredentials() throws Exception {
+        FakePool pool = new FakePool();
+        PoolKey owner = new PoolKey("smtp.gmail.com", 587, "user@gmail.com", "secret", "user@gmail.com", false);
+
+        FakeService first = pool.borrow(owner, SESSION);
+        pool.release(owner, first);
+
+        PoolKey wrongPassword = new PoolKey("smtp.gmail.com", 587, "user@gmail.com", "guess", "user@gmail.com", false);
+        FakeService other = pool.borrow(wrongPassword, SESSION);
+        assertThat(other, is(not(sameInstance(first))));
+        assertThat(other.key, is(wrongPassword));
+        pool.release(wrongPassword, other);
+
+        PoolKey otherFrom = new PoolKey("smtp.gmail.com", 587, "user@gmail.com", "secret", "alias@gmail.com", false);
+        FakeService alias = pool.borrow(otherFrom, SESSION);
+        assertThat(alias, is(not(sameInstance(first))));
+        pool.release(otherFrom, alias);
+
+        assertThat(pool.borrow(owner, SESSION), is(sameInstance(first)));
+        assertThat(owner.toString().contains("secret"), is(false));
+        pool.close();
+    }
+
+    @Test
+    public void interruptedThrottleWaitReleasesTheLeaseOnce() throws Exception {
+        FakePool pool = new FakePool();
+        PoolKey key = new PoolKey("smtp.gmail.com", 587, "user@gmail.com", "secret", "user@gmail.com", false);
+        SendThrottle throttle = new SendThrottle();
+        throttle.setRate("gmail", 1, 60000, 1);
+
+        // First send of the batch, the connection is kept
+        Lease<FakeService> lease = pool.lease(key);
+        lease.get(SESSION);
+        throttle.acquire("gmail", "user@gmail.com", lease);
+        assertThat(lease.isHeld(), is(true));
+
+        // Second send waits for the rate and is interrupted
+        Thread.currentThread().interrupt();
+        try {
+            throttle.acquire("gmail", "user@gmail.com", lease);
+            fail("the wait was interrupted");
+        } catch (EmailException e) {
+            assertThat(Thread.interrupted(), is(true));
+        }
+        assertThat(lease.isHeld(), is(false));
+
+        // The batch lets go of what it holds
+        lease.release();
+        assertThat(pool.getTotal(), is(1));
+        assertThat(pool.getIdle(), is(1));
+        pool.close();
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Miguel Augusto Caligares <mcaligares@gmail.com>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcaligares.modules.email;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.FolderClosedException;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import mcaligares.modules.email.entity.Filter.FilterType;
+import mcaligares.modules.email.index.FolderIndex;
+import mcaligares.modules.email.index.TextIndex;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author miguel
+ *
+ */
+public class TextIndexTest {
+
+    @Test
+    public void candidatesIncludeSubstringMatches() throws Exception {
+        File directory = File.createTempFile("index", "");
+        directory.delete();
+        directory.deleteOnExit();
+
+        FolderIndex index = new TextIndex(directory).getFolder("user@gmail.com", "INBOX");
+        index.validate(7);
+        index.add(1, "Monthly Invoice", Arrays.asList("Please find the invoice attached."));
+        index.add(2, "Meeting", Arrays.asList("See you at the meeting, bring the invoices."));
+        index.add(3, "Lunch", Arrays.asList("Pizza?"));
+        index.setIndexedThrough(3);
+        index.setIndexedThrough(2);
+        index.save();
+
+        index = new TextIndex(directory).getFolder("user@gmail.com", "INBOX");
+        assertThat(index.validate(7), is(true));
+        assertThat(index.getIndexedThrough(), is(3L));
+        assertThat(index.getCandidates(FilterType.SUBJECT, "INVOICE"), is(set(1L)));
+        assertThat(index.getCandidates(FilterType.BODY, "nvoice"), is(set(1L, 2L)));
+        assertThat(index.getCandidates(FilterType.BODY, "the invoice"), is(set(1L, 2L)));
+        assertThat(index.getCandidates(FilterType.BODY, "pizza invoice").isEmpty(), is(true));
+        assertThat(index.getCandidates(FilterType.BODY, "?!"), is(nullValue()));
+
+        // Checked against the text, as the server does
+        assertThat(TextIndex.contains("bring the invoices.", "THE INVOICE"), is(true));
+        assertThat(TextIndex.contains("the, invoice", "the invoice"), is(false));
+
+        index.remove(Arrays.asList(1L));
+        assertThat(index.getCandidates(FilterType.BODY, "invoice"), is(set(2L)));
+
+        // Reassigned uids start over
+        assertThat(index.validate(8), is(false));
+        assertThat(index.getIndexedThrough(), is(0L));
+    }
+
+    @Test
+    public void undecodablePartsAreSkippedButReadFailuresThrown() throws Exception {
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", "text/plain; charset=x-unknown");
+        MimeBodyPart unknown = new MimeBodyPart(headers, "invoice".getBytes("US-ASCII"));
+        MimeBodyPart plain = new MimeBodyPart();
+        plain.setText("Please find the invoice attached.");
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(unknown);
+        multipart.addBodyPart(plain);
+        message.setContent(multipart);
+        message.saveChanges();
+        assertThat(TextIndex.getTexts(message), is(Arrays.asList("Please find the invoice attached.")));
+
+        // The folder went away while reading, the message cannot be indexed
+        MimeBodyPart closed = new MimeBodyPart() {
+            @Override
+            public Object getContent() throws MessagingException {
+                throw new FolderClosedException(null);
+            }
+        };
+        closed.setText("unread");
+        multipart.addBodyPart(closed);
+        message.saveChanges();
+        try {
+            TextIndex.getTexts(message);
+            fail("the folder was closed");
+        } catch (FolderClosedException e) {
+        }
+    }
+
+    private static Set<Long> set(Long... uids) {
+        return new HashSet<Long>(Arrays.asList(uids));
+    }
+
+}